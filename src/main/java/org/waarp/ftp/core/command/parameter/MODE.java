@@ -55,6 +55,10 @@ public class MODE extends AbstractCommand {
             getSession().getDataConn().setMode(transferMode);
         } else if (transferMode == FtpArgumentCode.TransferMode.STREAM) {
             getSession().getDataConn().setMode(transferMode);
+        } else if (transferMode == FtpArgumentCode.TransferMode.COMPRESSED) {
+            getSession().getDataConn().setMode(transferMode);
+        } else if (transferMode == FtpArgumentCode.TransferMode.ZLIB) {
+            getSession().getDataConn().setMode(transferMode);
         } else {
             throw new Reply504Exception("Mode not implemented: " +
                     transferMode.name());
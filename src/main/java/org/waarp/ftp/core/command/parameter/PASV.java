@@ -27,7 +27,6 @@ import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.config.FtpInternalConfiguration;
-import org.waarp.ftp.core.data.FtpDataAsyncConn;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
 /**
@@ -52,8 +51,7 @@ public class PASV extends AbstractCommand {
         // Take a new port: 3 attempts
         boolean isInit = false;
         for (int i = 1; i <= FtpInternalConfiguration.RETRYNB; i++) {
-            int newport = FtpDataAsyncConn
-                    .getNewPassivePort(getConfiguration());
+            int newport = getSession().getDataConn().getNewPassivePort();
             if (newport == -1) {
                 throw new Reply425Exception("No port available");
             }
@@ -63,7 +61,7 @@ public class PASV extends AbstractCommand {
                         .getLocalAddress();
                 InetAddress remote = getSession().getDataConn()
                         .getRemoteAddress().getAddress();
-                getConfiguration().delFtpSession(remote, local);
+                getConfiguration().delFtpSession(remote, local, getSession());
             }
             logger.info("PASV: set Passive Port {}", newport);
             getSession().getDataConn().setLocalPort(newport);
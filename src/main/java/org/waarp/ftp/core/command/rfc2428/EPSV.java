@@ -27,7 +27,6 @@ import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.config.FtpInternalConfiguration;
-import org.waarp.ftp.core.data.FtpDataAsyncConn;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
 /**
@@ -50,7 +49,7 @@ public class EPSV extends AbstractCommand {
         boolean isInit = false;
         int newport = -1;
         for (int i = 1; i <= FtpInternalConfiguration.RETRYNB; i++) {
-            newport = FtpDataAsyncConn.getNewPassivePort(getConfiguration());
+            newport = getSession().getDataConn().getNewPassivePort();
             if (newport == -1) {
                 throw new Reply425Exception("No port available");
             }
@@ -60,7 +59,7 @@ public class EPSV extends AbstractCommand {
                         .getLocalAddress();
                 InetAddress remote = getSession().getDataConn()
                         .getRemoteAddress().getAddress();
-                getConfiguration().delFtpSession(remote, local);
+                getConfiguration().delFtpSession(remote, local, getSession());
             }
             logger.info("EPSV: set Passive Port {}", newport);
             getSession().getDataConn().setLocalPort(newport);
@@ -20,6 +20,7 @@ package org.waarp.ftp.core.command.service;
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.ftp.core.data.FtpTransferControl.TransferState;
 import org.waarp.ftp.core.exception.FtpNoTransferException;
 
 /**
@@ -43,10 +44,19 @@ public class ABOR extends AbstractCommand {
                         ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION, null);
                 return;
             }
+            // The aborted transfer command is answered first (426)
             getSession().getDataConn().getFtpTransferControl()
                     .setTransferAbortedFromInternal(false);
+            getSession().setReplyCode(
+                    ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION, null);
             return;
         }
+        if (getSession().getDataConn().getFtpTransferControl().getTransferState() ==
+                TransferState.CONNECTING) {
+            // The data connection in progress is aborted, its command answered first (426)
+            getSession().getDataConn().getFtpTransferControl()
+                    .setTransferAbortedFromInternal(false);
+        }
         getSession().setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
                 null);
     }
@@ -20,7 +20,10 @@ package org.waarp.ftp.core.config;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,6 +37,7 @@ import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpUnknownFieldException;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.session.FtpSessionReference.ParkedConnection;
 
 /**
  * Abstract class for configuration
@@ -136,6 +140,82 @@ public abstract class FtpConfiguration {
      */
     private int BLOCKSIZE = 0x10000; // 64K
 
+    /**
+     * Number of blocks that can be in flight at the same time during a Retrieve operation
+     */
+    private int RETRIEVEWINDOW = 8;
+
+    /**
+     * Number of bytes that can be in flight at the same time during a Retrieve operation (0 means
+     * RETRIEVEWINDOW x BLOCKSIZE)
+     */
+    private long RETRIEVEWINDOWSIZE = 0;
+
+    /**
+     * Number of blocks read ahead from the disk by transfer during a Retrieve operation (0 means
+     * no read ahead)
+     */
+    private int READAHEAD = 2;
+
+    /**
+     * Maximum number of bytes read ahead from the disk for all Retrieve operations
+     */
+    private long READAHEADGLOBALSIZE = 0x4000000; // 64M
+
+    /**
+     * Number of threads used to read ahead from the disk
+     */
+    private int READAHEADTHREAD = 4;
+
+    /**
+     * Number of received blocks queued by transfer for the disk writer during a Store operation
+     * (0 means blocks are written directly by the data executor)
+     */
+    private int STOREQUEUE = 16;
+
+    /**
+     * Number of threads used to write to the disk during Store operations
+     */
+    private int STOREWRITERTHREAD = 4;
+
+    /**
+     * Number of threads shared by all sessions to run the transfer tasks (start and end of
+     * transfers)
+     */
+    private int TRANSFERTHREAD = 8;
+
+    /**
+     * Should command execution and transfer tasks run on virtual threads (JDK 21+ only, one per
+     * session) instead of the CLIENT_THREAD and TRANSFERTHREAD pools
+     */
+    private boolean virtualThread = false;
+
+    /**
+     * Maximum number of active (PORT/EPRT) data connections being connected at the same time
+     */
+    private int ACTIVECONNECTMAX = 1000;
+
+    /**
+     * Deadline in ms to connect an active (PORT/EPRT) data connection
+     */
+    private int ACTIVECONNECTTIMEOUT = 10000;
+
+    /**
+     * Default compression level for MODE Z (0 to 9, changed by OPTS MODE Z LEVEL n)
+     */
+    private int MODEZLEVEL = 6;
+
+    /**
+     * Percentage of the system load by CPU above which MODE Z transfers are not compressed
+     */
+    private int MODEZMAXLOAD = 80;
+
+    /**
+     * Percentage of the compressed size of the sample above which MODE Z transfers are not
+     * compressed
+     */
+    private int MODEZMAXRATIO = 90;
+
     /**
      * Limit in Write byte/s to apply globally to the FTP Server
      */
@@ -166,6 +246,62 @@ public abstract class FtpConfiguration {
      */
     private boolean deleteOnAbort = false;
 
+    /**
+     * Should Store like commands use zero copy (splice) when possible
+     */
+    private boolean zeroCopyStore = false;
+
+    /**
+     * Should MODE Z Retrieve transfers decide to compress or not according to the file
+     * extension, a sample of the file and the system load
+     */
+    private boolean adaptiveModeZ = true;
+
+    /**
+     * Extensions (lower case, without dot) of files already compressed, never compressed again in
+     * MODE Z when adaptiveModeZ is set
+     */
+    private Set<String> incompressibleExtensions = new HashSet<String>(Arrays.asList("7z",
+            "bz2", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "lzma", "mkv", "mov", "mp3", "mp4",
+            "png", "rar", "tbz", "tgz", "txz", "war", "xz", "z", "zip", "zst"));
+
+    /**
+     * Network transport to use (EPOLL falls back to NIO when not available)
+     */
+    private FtpTransport transport = FtpTransport.NIO;
+
+    /**
+     * Should TCP_CORK be set on Data connections (EPOLL only)
+     */
+    private boolean tcpCork = false;
+
+    /**
+     * Should TCP_QUICKACK be set on Data connections (EPOLL only)
+     */
+    private boolean tcpQuickAck = false;
+
+    /**
+     * TCP_NOTSENT_LOWAT to set on Data connections (EPOLL only, 0 means not set)
+     */
+    private long tcpNotSentLowAt = 0;
+
+    /**
+     * Should SO_REUSEPORT be set on the Command listening sockets (EPOLL only)
+     */
+    private boolean reusePort = false;
+
+    /**
+     * Number of listening sockets bound on the Command port when reusePort is active (0 means one
+     * by Boss thread)
+     */
+    private int commandAcceptors = 0;
+
+    /**
+     * Number of Passive ports opened at startup and shared by all sessions (0 means one bind by
+     * PASV/EPSV)
+     */
+    private int sharedPassivePorts = 0;
+
     /**
      * Max global memory limit: default is 4GB
      */
@@ -338,6 +474,33 @@ public abstract class FtpConfiguration {
      */
     public abstract int getNextRangePort();
 
+    /**
+     * Release a port previously given by getNextRangePort once no more bound, so it could be
+     * given again. Default implementation does nothing.
+     * 
+     * @param port
+     */
+    public void releaseRangePort(int port) {
+    }
+
+    /**
+     * 
+     * @return the number of Passive ports currently in use (for monitoring). Default
+     *         implementation returns 0.
+     */
+    public int getNbRangePortInUse() {
+        return 0;
+    }
+
+    /**
+     * 
+     * @return the number of times no Passive port was available (for monitoring). Default
+     *         implementation returns 0.
+     */
+    public long getNbRangePortExhausted() {
+        return 0;
+    }
+
     /**
      * 
      * @return the Base Directory of this Ftp Server
@@ -542,13 +705,41 @@ public abstract class FtpConfiguration {
     }
 
     /**
-     * Remove the FtpSession
+     * Return and remove the FtpSession, or park the channel until the FtpSession is registered
+     * 
+     * @param channel
+     * @param active
+     * @param listener
+     *            called later with the FtpSession (or null) if not yet registered
+     * @return the FtpSession if it exists associated to this channel, else null (parked)
+     */
+    public FtpSession getFtpSession(Channel channel, boolean active, ParkedConnection listener) {
+        return internalConfiguration.getFtpSession(channel, active, true, listener);
+    }
+
+    /**
+     * Return the FtpSession, or park the channel until the FtpSession is registered
+     * 
+     * @param channel
+     * @param active
+     * @param listener
+     *            called later with the FtpSession (or null) if not yet registered
+     * @return the FtpSession if it exists associated to this channel, else null (parked)
+     */
+    public FtpSession getFtpSessionNoRemove(Channel channel, boolean active,
+            ParkedConnection listener) {
+        return internalConfiguration.getFtpSession(channel, active, false, listener);
+    }
+
+    /**
+     * Remove the FtpSession if still registered for these addresses
      * 
      * @param ipOnly
      * @param fullIp
+     * @param session
      */
-    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp) {
-        internalConfiguration.delFtpSession(ipOnly, fullIp);
+    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp, FtpSession session) {
+        internalConfiguration.delFtpSession(ipOnly, fullIp, session);
     }
 
     /**
@@ -656,6 +847,213 @@ public abstract class FtpConfiguration {
         BLOCKSIZE = bLOCKSIZE;
     }
 
+    /**
+     * @return the rETRIEVEWINDOW
+     */
+    public int getRETRIEVEWINDOW() {
+        return RETRIEVEWINDOW;
+    }
+
+    /**
+     * @param rETRIEVEWINDOW the rETRIEVEWINDOW to set (at least 1)
+     */
+    public void setRETRIEVEWINDOW(int rETRIEVEWINDOW) {
+        RETRIEVEWINDOW = rETRIEVEWINDOW > 0 ? rETRIEVEWINDOW : 1;
+    }
+
+    /**
+     * @return the rETRIEVEWINDOWSIZE
+     */
+    public long getRETRIEVEWINDOWSIZE() {
+        return RETRIEVEWINDOWSIZE;
+    }
+
+    /**
+     * @param rETRIEVEWINDOWSIZE the rETRIEVEWINDOWSIZE to set (0 means RETRIEVEWINDOW x BLOCKSIZE)
+     */
+    public void setRETRIEVEWINDOWSIZE(long rETRIEVEWINDOWSIZE) {
+        RETRIEVEWINDOWSIZE = rETRIEVEWINDOWSIZE > 0 ? rETRIEVEWINDOWSIZE : 0;
+    }
+
+    /**
+     * 
+     * @return the number of bytes that can be in flight during a Retrieve operation
+     */
+    public long getRetrieveWindowBytes() {
+        if (RETRIEVEWINDOWSIZE > 0) {
+            return RETRIEVEWINDOWSIZE;
+        }
+        return (long) RETRIEVEWINDOW * BLOCKSIZE;
+    }
+
+    /**
+     * @return the rEADAHEAD
+     */
+    public int getREADAHEAD() {
+        return READAHEAD;
+    }
+
+    /**
+     * @param rEADAHEAD the rEADAHEAD to set (0 means no read ahead)
+     */
+    public void setREADAHEAD(int rEADAHEAD) {
+        READAHEAD = rEADAHEAD > 0 ? rEADAHEAD : 0;
+    }
+
+    /**
+     * @return the rEADAHEADGLOBALSIZE
+     */
+    public long getREADAHEADGLOBALSIZE() {
+        return READAHEADGLOBALSIZE;
+    }
+
+    /**
+     * @param rEADAHEADGLOBALSIZE the rEADAHEADGLOBALSIZE to set
+     */
+    public void setREADAHEADGLOBALSIZE(long rEADAHEADGLOBALSIZE) {
+        READAHEADGLOBALSIZE = rEADAHEADGLOBALSIZE > 0 ? rEADAHEADGLOBALSIZE : 0;
+    }
+
+    /**
+     * @return the rEADAHEADTHREAD
+     */
+    public int getREADAHEADTHREAD() {
+        return READAHEADTHREAD;
+    }
+
+    /**
+     * @param rEADAHEADTHREAD the rEADAHEADTHREAD to set (at least 1)
+     */
+    public void setREADAHEADTHREAD(int rEADAHEADTHREAD) {
+        READAHEADTHREAD = rEADAHEADTHREAD > 0 ? rEADAHEADTHREAD : 1;
+    }
+
+    /**
+     * @return the sTOREQUEUE
+     */
+    public int getSTOREQUEUE() {
+        return STOREQUEUE;
+    }
+
+    /**
+     * @param sTOREQUEUE the sTOREQUEUE to set (0 means no asynchronous disk writer)
+     */
+    public void setSTOREQUEUE(int sTOREQUEUE) {
+        STOREQUEUE = sTOREQUEUE > 0 ? sTOREQUEUE : 0;
+    }
+
+    /**
+     * @return the sTOREWRITERTHREAD
+     */
+    public int getSTOREWRITERTHREAD() {
+        return STOREWRITERTHREAD;
+    }
+
+    /**
+     * @param sTOREWRITERTHREAD the sTOREWRITERTHREAD to set (at least 1)
+     */
+    public void setSTOREWRITERTHREAD(int sTOREWRITERTHREAD) {
+        STOREWRITERTHREAD = sTOREWRITERTHREAD > 0 ? sTOREWRITERTHREAD : 1;
+    }
+
+    /**
+     * @return the tRANSFERTHREAD
+     */
+    public int getTRANSFERTHREAD() {
+        return TRANSFERTHREAD;
+    }
+
+    /**
+     * @param tRANSFERTHREAD the tRANSFERTHREAD to set (at least 1)
+     */
+    public void setTRANSFERTHREAD(int tRANSFERTHREAD) {
+        TRANSFERTHREAD = tRANSFERTHREAD > 0 ? tRANSFERTHREAD : 1;
+    }
+
+    /**
+     * @return the virtualThread
+     */
+    public boolean isVirtualThread() {
+        return virtualThread;
+    }
+
+    /**
+     * @param virtualThread the virtualThread to set (ignored if not available)
+     */
+    public void setVirtualThread(boolean virtualThread) {
+        this.virtualThread = virtualThread;
+    }
+
+    /**
+     * @return the aCTIVECONNECTMAX
+     */
+    public int getACTIVECONNECTMAX() {
+        return ACTIVECONNECTMAX;
+    }
+
+    /**
+     * @param aCTIVECONNECTMAX the aCTIVECONNECTMAX to set (at least 1)
+     */
+    public void setACTIVECONNECTMAX(int aCTIVECONNECTMAX) {
+        ACTIVECONNECTMAX = aCTIVECONNECTMAX > 0 ? aCTIVECONNECTMAX : 1;
+    }
+
+    /**
+     * @return the aCTIVECONNECTTIMEOUT
+     */
+    public int getACTIVECONNECTTIMEOUT() {
+        return ACTIVECONNECTTIMEOUT;
+    }
+
+    /**
+     * @param aCTIVECONNECTTIMEOUT the aCTIVECONNECTTIMEOUT to set (at least 100 ms)
+     */
+    public void setACTIVECONNECTTIMEOUT(int aCTIVECONNECTTIMEOUT) {
+        ACTIVECONNECTTIMEOUT = aCTIVECONNECTTIMEOUT >= 100 ? aCTIVECONNECTTIMEOUT : 100;
+    }
+
+    /**
+     * @return the mODEZLEVEL
+     */
+    public int getMODEZLEVEL() {
+        return MODEZLEVEL;
+    }
+
+    /**
+     * @param mODEZLEVEL the mODEZLEVEL to set (0 to 9)
+     */
+    public void setMODEZLEVEL(int mODEZLEVEL) {
+        MODEZLEVEL = mODEZLEVEL < 0 ? 0 : (mODEZLEVEL > 9 ? 9 : mODEZLEVEL);
+    }
+
+    /**
+     * @return the mODEZMAXLOAD
+     */
+    public int getMODEZMAXLOAD() {
+        return MODEZMAXLOAD;
+    }
+
+    /**
+     * @param mODEZMAXLOAD the mODEZMAXLOAD to set (percentage of load by CPU, 0 means no check)
+     */
+    public void setMODEZMAXLOAD(int mODEZMAXLOAD) {
+        MODEZMAXLOAD = mODEZMAXLOAD > 0 ? mODEZMAXLOAD : 0;
+    }
+
+    /**
+     * @return the mODEZMAXRATIO
+     */
+    public int getMODEZMAXRATIO() {
+        return MODEZMAXRATIO;
+    }
+
+    /**
+     * @param mODEZMAXRATIO the mODEZMAXRATIO to set (percentage, 100 or more means no check)
+     */
+    public void setMODEZMAXRATIO(int mODEZMAXRATIO) {
+        MODEZMAXRATIO = mODEZMAXRATIO > 0 ? mODEZMAXRATIO : 0;
+    }
+
     /**
      * @return the deleteOnAbort
      */
@@ -670,6 +1068,165 @@ public abstract class FtpConfiguration {
         this.deleteOnAbort = deleteOnAbort;
     }
 
+    /**
+     * @return the zeroCopyStore
+     */
+    public boolean isZeroCopyStore() {
+        return zeroCopyStore;
+    }
+
+    /**
+     * @param zeroCopyStore the zeroCopyStore to set
+     */
+    public void setZeroCopyStore(boolean zeroCopyStore) {
+        this.zeroCopyStore = zeroCopyStore;
+    }
+
+    /**
+     * @return the adaptiveModeZ
+     */
+    public boolean isAdaptiveModeZ() {
+        return adaptiveModeZ;
+    }
+
+    /**
+     * @param adaptiveModeZ the adaptiveModeZ to set
+     */
+    public void setAdaptiveModeZ(boolean adaptiveModeZ) {
+        this.adaptiveModeZ = adaptiveModeZ;
+    }
+
+    /**
+     * 
+     * @param path
+     * @return True if the extension of this path is one of the incompressible extensions
+     */
+    public boolean isIncompressible(String path) {
+        if (path == null) {
+            return false;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return false;
+        }
+        return incompressibleExtensions.contains(path.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * @param extensions the incompressible extensions to set (comma separated list)
+     */
+    public void setIncompressibleExtensions(String extensions) {
+        Set<String> set = new HashSet<String>();
+        for (String extension : extensions.split(",")) {
+            extension = extension.trim().toLowerCase();
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if (extension.length() > 0) {
+                set.add(extension);
+            }
+        }
+        incompressibleExtensions = set;
+    }
+
+    /**
+     * @return the transport
+     */
+    public FtpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport the transport to set
+     */
+    public void setTransport(FtpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the tcpCork
+     */
+    public boolean isTcpCork() {
+        return tcpCork;
+    }
+
+    /**
+     * @param tcpCork the tcpCork to set
+     */
+    public void setTcpCork(boolean tcpCork) {
+        this.tcpCork = tcpCork;
+    }
+
+    /**
+     * @return the tcpQuickAck
+     */
+    public boolean isTcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    /**
+     * @param tcpQuickAck the tcpQuickAck to set
+     */
+    public void setTcpQuickAck(boolean tcpQuickAck) {
+        this.tcpQuickAck = tcpQuickAck;
+    }
+
+    /**
+     * @return the tcpNotSentLowAt
+     */
+    public long getTcpNotSentLowAt() {
+        return tcpNotSentLowAt;
+    }
+
+    /**
+     * @param tcpNotSentLowAt the tcpNotSentLowAt to set (0 means not set)
+     */
+    public void setTcpNotSentLowAt(long tcpNotSentLowAt) {
+        this.tcpNotSentLowAt = tcpNotSentLowAt > 0 ? tcpNotSentLowAt : 0;
+    }
+
+    /**
+     * @return the reusePort
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * @param reusePort the reusePort to set
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @return the commandAcceptors
+     */
+    public int getCommandAcceptors() {
+        return commandAcceptors;
+    }
+
+    /**
+     * @param commandAcceptors the commandAcceptors to set (0 means one by Boss thread)
+     */
+    public void setCommandAcceptors(int commandAcceptors) {
+        this.commandAcceptors = commandAcceptors > 0 ? commandAcceptors : 0;
+    }
+
+    /**
+     * @return the sharedPassivePorts
+     */
+    public int getSharedPassivePorts() {
+        return sharedPassivePorts;
+    }
+
+    /**
+     * @param sharedPassivePorts the sharedPassivePorts to set (0 means one bind by PASV/EPSV)
+     */
+    public void setSharedPassivePorts(int sharedPassivePorts) {
+        this.sharedPassivePorts = sharedPassivePorts > 0 ? sharedPassivePorts : 0;
+    }
+
     /**
      * @return the dATATIMEOUTCON
      */
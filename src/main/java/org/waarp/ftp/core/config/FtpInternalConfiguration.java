@@ -22,19 +22,29 @@ import java.net.InetSocketAddress;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.DefaultEventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 
 import org.waarp.common.command.exception.Reply425Exception;
@@ -42,7 +52,6 @@ import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.DetectionUtils;
-import org.waarp.common.utility.WaarpNettyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
 import org.waarp.ftp.core.control.FtpInitializer;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
@@ -51,8 +60,10 @@ import org.waarp.ftp.core.data.handler.ftps.FtpsDataInitializer;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.session.FtpSessionReference;
+import org.waarp.ftp.core.session.FtpSessionReference.ParkedConnection;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 import org.waarp.ftp.core.utils.FtpShutdownHook;
+import org.waarp.ftp.core.utils.FtpVirtualThreads;
 
 /**
  * Internal configuration of the FTP server, related to Netty
@@ -70,7 +81,11 @@ public class FtpInternalConfiguration {
     // Network Internals
     /**
      * Time elapse for retry in ms
+     * 
+     * @deprecated no more used: early data connections are parked until their session is
+     *             registered instead of being retried
      */
+    @Deprecated
     public static final long RETRYINMS = 10;
 
     /**
@@ -101,12 +116,12 @@ public class FtpInternalConfiguration {
     /**
      * ExecutorService Boss
      */
-    private final EventLoopGroup execBoss;
+    private EventLoopGroup execBoss = null;
 
     /**
      * ExecutorService Worker
      */
-    private final EventLoopGroup execWorker;
+    private EventLoopGroup execWorker = null;
 
     /**
      * Bootstrap for Command server
@@ -121,22 +136,27 @@ public class FtpInternalConfiguration {
     /**
      * ExecutorService Data Passive Boss
      */
-    private final EventLoopGroup execPassiveDataBoss;
+    private EventLoopGroup execPassiveDataBoss = null;
 
     /**
      * ExecutorService Command Event Loop
      */
-    private final EventLoopGroup execCommandEvent;
+    private EventLoopGroup execCommandEvent = null;
 
     /**
      * ExecutorService Data Event Loop
      */
-    private final EventLoopGroup execDataEvent;
+    private EventLoopGroup execDataEvent = null;
 
     /**
      * ExecutorService Data Active Worker
      */
-    private final EventLoopGroup execDataWorker;
+    private EventLoopGroup execDataWorker = null;
+
+    /**
+     * Network transport used by all EventLoopGroups
+     */
+    private FtpTransport transport = FtpTransport.NIO;
 
     /**
      * FtpSession references used by Data Connection process
@@ -164,6 +184,36 @@ public class FtpInternalConfiguration {
      */
     private FtpGlobalTrafficShapingHandler globalTrafficShapingHandler = null;
 
+    /**
+     * Executor for disk read ahead of Retrieve operations
+     */
+    private ExecutorService readAheadExecutor = null;
+
+    /**
+     * Current number of bytes read ahead for all Retrieve operations
+     */
+    private final AtomicLong readAheadSize = new AtomicLong(0);
+
+    /**
+     * Current number of active data connections being connected
+     */
+    private final AtomicInteger activeConnects = new AtomicInteger(0);
+
+    /**
+     * Executor for asynchronous disk writes of Store operations
+     */
+    private ExecutorService storeWriterExecutor = null;
+
+    /**
+     * Executor shared by all sessions for transfer tasks
+     */
+    private ThreadPoolExecutor transferExecutor = null;
+
+    /**
+     * ThreadFactory of virtual threads if enabled and available
+     */
+    private ThreadFactory virtualThreadFactory = null;
+
     /**
      * Does the FTP will be SSL native based (990 989 port)
      */
@@ -216,6 +266,21 @@ public class FtpInternalConfiguration {
     private final ConcurrentHashMap<InetSocketAddress, BindAddress> hashBindPassiveDataConn =
             new ConcurrentHashMap<InetSocketAddress, BindAddress>();
 
+    /**
+     * Pre-opened shared Passive ports (null if not in shared mode)
+     */
+    private int[] sharedPassivePorts = null;
+
+    /**
+     * Pre-opened shared Passive Ssl ports (same as sharedPassivePorts if AUTH is not accepted)
+     */
+    private int[] sharedPassiveSslPorts = null;
+
+    /**
+     * Round robin index within the shared Passive ports
+     */
+    private final AtomicInteger sharedPassiveIndex = new AtomicInteger(0);
+
     /**
      * Global Configuration
      */
@@ -231,13 +296,6 @@ public class FtpInternalConfiguration {
         ISUNIX = !DetectionUtils.isWindows();
         configuration.getShutdownConfiguration().timeout = configuration.getTIMEOUTCON();
         new FtpShutdownHook(configuration.getShutdownConfiguration(), configuration);
-        execCommandEvent = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Command"));
-        execDataEvent = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Data"));
-        execBoss = new NioEventLoopGroup(configuration.getSERVER_THREAD(), new WaarpThreadFactory("CommandBoss", false));
-        execWorker = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("CommandWorker"));
-        execPassiveDataBoss = new NioEventLoopGroup(configuration.getSERVER_THREAD() * 2, new WaarpThreadFactory(
-                "PassiveDataBoss"));
-        execDataWorker = new NioEventLoopGroup(configuration.getCLIENT_THREAD() * 2, new WaarpThreadFactory("DataWorker"));
     }
 
     /**
@@ -249,15 +307,43 @@ public class FtpInternalConfiguration {
     public void serverStartup() throws FtpNoConnectionException {
         WaarpLoggerFactory.setDefaultFactory(WaarpLoggerFactory
                 .getDefaultFactory());
+        initEventLoopGroups();
         // Command
         commandChannelGroup = new DefaultChannelGroup(configuration.fromClass.getName(), execWorker.next());
         // Data
         dataChannelGroup = new DefaultChannelGroup(configuration.fromClass.getName() + ".data", execWorker.next());
+        // Disk read ahead
+        readAheadExecutor = Executors.newFixedThreadPool(configuration.getREADAHEADTHREAD(),
+                new WaarpThreadFactory("ReadAhead"));
+        // Disk writer
+        storeWriterExecutor = Executors.newFixedThreadPool(configuration.getSTOREWRITERTHREAD(),
+                new WaarpThreadFactory("StoreWriter"));
+        // Virtual threads for command and transfer tasks
+        if (configuration.isVirtualThread()) {
+            virtualThreadFactory = FtpVirtualThreads.newThreadFactory("Session");
+            if (virtualThreadFactory == null) {
+                logger.warn("Virtual threads not available (JDK 21+ needed), "
+                        + "use thread pools instead");
+            }
+        }
+        // Transfer tasks, serialized by session
+        if (virtualThreadFactory != null) {
+            // one virtual thread per running task, so per active session
+            transferExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    FtpVirtualThreads.newThreadFactory("Transfer"));
+        } else {
+            transferExecutor = new ThreadPoolExecutor(configuration.getTRANSFERTHREAD(),
+                    configuration.getTRANSFERTHREAD(), 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WaarpThreadFactory("Transfer"));
+        }
 
         // Passive Data Connections
         passiveBootstrap = new ServerBootstrap();
-        WaarpNettyUtil.setServerBootstrap(passiveBootstrap, execPassiveDataBoss, execDataWorker,
+        transport.setServerBootstrap(passiveBootstrap, execPassiveDataBoss, execDataWorker,
                 (int) configuration.getTIMEOUTCON());
+        passiveBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getDataWriteBufferWaterMark());
+        transport.setServerOptions(passiveBootstrap, configuration, true);
         if (usingNativeSsl) {
             passiveBootstrap.childHandler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, false));
@@ -267,8 +353,10 @@ public class FtpInternalConfiguration {
         }
         if (acceptAuthProt) {
             passiveSslBootstrap = new ServerBootstrap();
-            WaarpNettyUtil.setServerBootstrap(passiveSslBootstrap, execPassiveDataBoss, execDataWorker,
+            transport.setServerBootstrap(passiveSslBootstrap, execPassiveDataBoss, execDataWorker,
                     (int) configuration.getTIMEOUTCON());
+            passiveSslBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getDataWriteBufferWaterMark());
+            transport.setServerOptions(passiveSslBootstrap, configuration, true);
             passiveSslBootstrap.childHandler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, false));
         } else {
@@ -277,7 +365,10 @@ public class FtpInternalConfiguration {
 
         // Active Data Connections
         activeBootstrap = new Bootstrap();
-        WaarpNettyUtil.setBootstrap(activeBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+        transport.setBootstrap(activeBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+        activeBootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, getDataWriteBufferWaterMark());
+        activeBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, configuration.getACTIVECONNECTTIMEOUT());
+        transport.setDataOptions(activeBootstrap, configuration);
         if (usingNativeSsl) {
             activeBootstrap.handler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, true));
@@ -287,16 +378,24 @@ public class FtpInternalConfiguration {
         }
         if (acceptAuthProt) {
             activeSslBootstrap = new Bootstrap();
-            WaarpNettyUtil.setBootstrap(activeSslBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+            transport.setBootstrap(activeSslBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+            activeSslBootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, getDataWriteBufferWaterMark());
+            activeSslBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                    configuration.getACTIVECONNECTTIMEOUT());
+            transport.setDataOptions(activeSslBootstrap, configuration);
             activeSslBootstrap.handler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, true));
         } else {
             activeSslBootstrap = activeBootstrap;
         }
 
+        // Shared Passive Data Connections
+        bindSharedPassive();
+
         // Main Command server
         serverBootstrap = new ServerBootstrap();
-        WaarpNettyUtil.setServerBootstrap(serverBootstrap, execBoss, execWorker, (int) configuration.getTIMEOUTCON());
+        transport.setServerBootstrap(serverBootstrap, execBoss, execWorker, (int) configuration.getTIMEOUTCON());
+        transport.setServerOptions(serverBootstrap, configuration, false);
         if (usingNativeSsl) {
             serverBootstrap.childHandler(new FtpsInitializer(
                     configuration.businessHandler, configuration));
@@ -306,9 +405,15 @@ public class FtpInternalConfiguration {
         }
 
         try {
-            FtpChannelUtils.addCommandChannel(serverBootstrap.bind(
-                    new InetSocketAddress(configuration.getServerPort())).sync().channel(),
-                    configuration);
+            int nbAcceptors = getNbCommandAcceptors();
+            for (int i = 0; i < nbAcceptors; i++) {
+                // With SO_REUSEPORT, each listening socket gets its own boss event loop and the
+                // kernel balances the accepts between them
+                FtpChannelUtils.addCommandChannel(serverBootstrap.bind(
+                        new InetSocketAddress(configuration.getServerPort())).sync().channel(),
+                        configuration);
+            }
+            logger.debug("Command port bound " + nbAcceptors + " time(s)");
         } catch (InterruptedException e) {
             throw new FtpNoConnectionException("Can't initiate the FTP server", e);
         }
@@ -325,6 +430,60 @@ public class FtpInternalConfiguration {
                 configuration.getDelayLimit());
     }
 
+    /**
+     * Create all EventLoopGroups according to the configured transport
+     */
+    private void initEventLoopGroups() {
+        transport = FtpTransport.getAvailable(configuration.getTransport());
+        logger.info("Use transport " + transport.name());
+        execCommandEvent = transport.newEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Command"));
+        execDataEvent = transport.newEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Data"));
+        execBoss = transport.newEventLoopGroup(configuration.getSERVER_THREAD(), new WaarpThreadFactory("CommandBoss", false));
+        execWorker = transport.newEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("CommandWorker"));
+        execPassiveDataBoss = transport.newEventLoopGroup(configuration.getSERVER_THREAD() * 2, new WaarpThreadFactory(
+                "PassiveDataBoss"));
+        execDataWorker = transport.newEventLoopGroup(configuration.getCLIENT_THREAD() * 2, new WaarpThreadFactory("DataWorker"));
+    }
+
+    /**
+     * 
+     * @return the number of listening sockets for the Command port (more than 1 only with
+     *         SO_REUSEPORT on EPOLL)
+     */
+    private int getNbCommandAcceptors() {
+        if (transport != FtpTransport.EPOLL || !configuration.isReusePort()) {
+            return 1;
+        }
+        int nb = configuration.getCommandAcceptors();
+        if (nb <= 0) {
+            // one by Boss event loop
+            nb = configuration.getSERVER_THREAD();
+        }
+        return nb > 0 ? nb : 1;
+    }
+
+    /**
+     * 
+     * @return the transport in use
+     */
+    public FtpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The high water mark is the Retrieve window, such that the channel becomes unwritable when
+     * the window is full, and the low water mark is half of it.
+     * 
+     * @return the WriteBufferWaterMark to use for Data connections
+     */
+    private WriteBufferWaterMark getDataWriteBufferWaterMark() {
+        long high = configuration.getRetrieveWindowBytes();
+        if (high > Integer.MAX_VALUE) {
+            high = Integer.MAX_VALUE;
+        }
+        return new WriteBufferWaterMark((int) (high / 2), (int) high);
+    }
+
     /**
      * 
      * @return an ExecutorService
@@ -361,13 +520,31 @@ public class FtpInternalConfiguration {
     }
 
     /**
-     * Remove the FtpSession
+     * Return (and remove if asked) the FtpSession, or park the channel until the FtpSession is
+     * registered (within TIMEOUTCON)
+     * 
+     * @param channel
+     * @param active
+     * @param remove
+     * @param listener
+     *            called later with the FtpSession (or null) if not yet registered
+     * @return the FtpSession if it exists associated to this channel, else null (parked)
+     */
+    public FtpSession getFtpSession(Channel channel, boolean active, boolean remove,
+            ParkedConnection listener) {
+        return ftpSessionReference.getOrParkFtpSession(channel, active, remove, listener,
+                configuration.getTIMEOUTCON());
+    }
+
+    /**
+     * Remove the FtpSession if still registered for these addresses
      * 
      * @param ipOnly
      * @param fullIp
+     * @param session
      */
-    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp) {
-        ftpSessionReference.delFtpSession(ipOnly, fullIp);
+    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp, FtpSession session) {
+        ftpSessionReference.delFtpSession(ipOnly, fullIp, session);
     }
 
     /**
@@ -412,20 +589,31 @@ public class FtpInternalConfiguration {
                         future = passiveBootstrap.bind(address);
                     }
                     if (future.await(configuration.getTIMEOUTCON())) {
-                        parentChannel = future.sync().channel();
+                        if (!future.isSuccess()) {
+                            logger.warn("Cannot open passive connection {}", future.cause()
+                                    .getMessage());
+                            // port probably in use or in TIME_WAIT
+                            configuration.releaseRangePort(address.getPort());
+                            throw new Reply425Exception(
+                                    "Cannot open a Passive Connection");
+                        }
+                        parentChannel = future.channel();
                     } else {
                         logger.warn("Cannot open passive connection due to Timeout");
+                        configuration.releaseRangePort(address.getPort());
                         throw new Reply425Exception(
                                 "Cannot open a Passive Connection due to Timeout");
                     }
                 } catch (ChannelException e) {
                     logger.warn("Cannot open passive connection {}", e
                             .getMessage());
+                    configuration.releaseRangePort(address.getPort());
                     throw new Reply425Exception(
                             "Cannot open a Passive Connection");
                 } catch (InterruptedException e) {
                     logger.warn("Cannot open passive connection {}", e
                             .getMessage());
+                    configuration.releaseRangePort(address.getPort());
                     throw new Reply425Exception(
                             "Cannot open a Passive Connection");
                 }
@@ -440,6 +628,113 @@ public class FtpInternalConfiguration {
         }
     }
 
+    /**
+     * Bind the shared Passive ports if configured
+     * 
+     * @throws FtpNoConnectionException
+     */
+    private void bindSharedPassive() throws FtpNoConnectionException {
+        int nb = configuration.getSharedPassivePorts();
+        if (nb <= 0) {
+            return;
+        }
+        sharedPassivePorts = bindSharedPassive(passiveBootstrap, nb);
+        if (acceptAuthProt) {
+            sharedPassiveSslPorts = bindSharedPassive(passiveSslBootstrap, nb);
+        } else {
+            sharedPassiveSslPorts = sharedPassivePorts;
+        }
+    }
+
+    /**
+     * 
+     * @param bootstrap
+     * @param nb
+     * @return the array of bound ports
+     * @throws FtpNoConnectionException
+     */
+    private int[] bindSharedPassive(ServerBootstrap bootstrap, int nb)
+            throws FtpNoConnectionException {
+        int[] ports = new int[nb];
+        for (int i = 0; i < nb; i++) {
+            int port = configuration.getNextRangePort();
+            if (port < 0) {
+                throw new FtpNoConnectionException("Not enough ports for shared Passive mode");
+            }
+            ChannelFuture future = bootstrap.bind(new InetSocketAddress(port))
+                    .awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                throw new FtpNoConnectionException("Can't bind shared Passive port " + port,
+                        future.cause());
+            }
+            FtpChannelUtils.addDataChannel(future.channel(), configuration);
+            ports[i] = port;
+        }
+        logger.debug("Shared Passive ports bound: " + nb);
+        return ports;
+    }
+
+    /**
+     * 
+     * @return True if Passive connections use the shared pre-opened ports
+     */
+    public boolean isSharedPassive() {
+        return sharedPassivePorts != null;
+    }
+
+    /**
+     * 
+     * @param remote
+     *            remote address of the client
+     * @param local
+     *            local address of the server
+     * @param ssl
+     * @return a shared Passive port not yet reserved for this couple of addresses, or -1 if none
+     */
+    public int getSharedPassivePort(InetAddress remote, InetAddress local, boolean ssl) {
+        int[] ports = ssl ? sharedPassiveSslPorts : sharedPassivePorts;
+        for (int i = 0; i < ports.length; i++) {
+            int port = ports[(sharedPassiveIndex.getAndIncrement() & Integer.MAX_VALUE) %
+                    ports.length];
+            if (!ftpSessionReference.contains(remote, new InetSocketAddress(local, port))) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reserve the shared Passive port of this local address for the remote client address, such
+     * that the next connection from this client on this port is given to this session. No bind is
+     * done since shared ports are opened at startup.
+     * 
+     * @param address
+     *            local address
+     * @param remote
+     *            remote address of the client
+     * @param ssl
+     * @param session
+     * @throws Reply425Exception
+     *             if the port is not a shared one or if it is already reserved
+     */
+    public void reserveSharedPassive(InetSocketAddress address, InetAddress remote, boolean ssl,
+            FtpSession session) throws Reply425Exception {
+        int[] ports = ssl ? sharedPassiveSslPorts : sharedPassivePorts;
+        boolean found = false;
+        for (int port : ports) {
+            if (port == address.getPort()) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            throw new Reply425Exception("Not a shared Passive port");
+        }
+        if (!ftpSessionReference.reserveFtpSession(remote, address, session)) {
+            throw new Reply425Exception("Passive port already reserved");
+        }
+    }
+
     /**
      * Try to unbind (closing the parent channel) the Passive Channel listening to the specified
      * local address if the last one. It returns only when the underlying parent channel is closed
@@ -448,6 +743,10 @@ public class FtpInternalConfiguration {
      * @param address
      */
     public void unbindPassive(InetSocketAddress address) {
+        if (isSharedPassive()) {
+            // shared ports stay open
+            return;
+        }
         configuration.bindLock();
         try {
             BindAddress bindAddress = hashBindPassiveDataConn.get(address);
@@ -457,6 +756,7 @@ public class FtpInternalConfiguration {
                 if (bindAddress.nbBind == 0) {
                     WaarpSslUtility.closingSslChannel(bindAddress.parent);
                     hashBindPassiveDataConn.remove(address);
+                    configuration.releaseRangePort(address.getPort());
                 }
             } else {
                 logger.warn("No Bind to {}", address);
@@ -483,6 +783,36 @@ public class FtpInternalConfiguration {
         return execCommandEvent;
     }
 
+    /**
+     * Return the Executor for the Command Event of a new control channel: a dedicated virtual
+     * thread (stopped once the channel is closed) if enabled, else the shared Command Executor
+     * 
+     * @param channel
+     *            the new control channel
+     * @return the Command Event Executor of this channel
+     */
+    public EventExecutorGroup getSessionExecutor(Channel channel) {
+        if (virtualThreadFactory == null) {
+            return execCommandEvent;
+        }
+        final DefaultEventExecutor executor = new DefaultEventExecutor(virtualThreadFactory);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                // the quiet period lets the last events (channelInactive) be run
+                executor.shutdownGracefully();
+            }
+        });
+        return executor;
+    }
+
+    /**
+     * 
+     * @return True if command and transfer tasks run on virtual threads
+     */
+    public boolean isVirtualThread() {
+        return virtualThreadFactory != null;
+    }
+
     /**
      * Return the associated Executor for Data Event
      * 
@@ -492,6 +822,101 @@ public class FtpInternalConfiguration {
         return execDataEvent;
     }
 
+    /**
+     * 
+     * @return the Executor for disk read ahead
+     */
+    public ExecutorService getReadAheadExecutor() {
+        return readAheadExecutor;
+    }
+
+    /**
+     * 
+     * @return the Executor for asynchronous disk writes
+     */
+    public ExecutorService getStoreWriterExecutor() {
+        return storeWriterExecutor;
+    }
+
+    /**
+     * 
+     * @return the Executor shared by all sessions for transfer tasks (its active, queued and
+     *         completed task counts could be monitored)
+     */
+    public ThreadPoolExecutor getTransferExecutor() {
+        return transferExecutor;
+    }
+
+    /**
+     * Try to reserve some bytes for read ahead within the global limit
+     * 
+     * @param size
+     * @return True if reserved, False if the global limit is reached
+     */
+    public boolean reserveReadAhead(long size) {
+        long limit = configuration.getREADAHEADGLOBALSIZE();
+        while (true) {
+            long current = readAheadSize.get();
+            if (current + size > limit) {
+                return false;
+            }
+            if (readAheadSize.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Try to reserve one active data connection being connected within the global limit
+     * 
+     * @return True if reserved, False if the global limit is reached
+     */
+    public boolean reserveActiveConnect() {
+        int limit = configuration.getACTIVECONNECTMAX();
+        while (true) {
+            int current = activeConnects.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (activeConnects.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release one active data connection previously reserved (connected or failed)
+     */
+    public void releaseActiveConnect() {
+        activeConnects.decrementAndGet();
+    }
+
+    /**
+     * Reserve some bytes for read ahead whatever the global limit
+     * 
+     * @param size
+     */
+    public void forceReadAhead(long size) {
+        readAheadSize.addAndGet(size);
+    }
+
+    /**
+     * Release some bytes previously reserved for read ahead
+     * 
+     * @param size
+     */
+    public void releaseReadAhead(long size) {
+        readAheadSize.addAndGet(-size);
+    }
+
+    /**
+     * 
+     * @return the current number of bytes read ahead
+     */
+    public long getReadAheadSize() {
+        return readAheadSize.get();
+    }
+
     /**
      * @param ssl
      * @return the ActiveBootstrap
@@ -546,14 +971,27 @@ public class FtpInternalConfiguration {
 
     public void releaseResources() {
         WaarpSslUtility.forceCloseAllSslChannels();
-        execBoss.shutdownGracefully();
-        execWorker.shutdownGracefully();
-        execPassiveDataBoss.shutdownGracefully();
-        execDataWorker.shutdownGracefully();
+        if (execBoss != null) {
+            execBoss.shutdownGracefully();
+            execWorker.shutdownGracefully();
+            execPassiveDataBoss.shutdownGracefully();
+            execDataWorker.shutdownGracefully();
+        }
         //execCommandEvent.shutdownGracefully();
         //execDataEvent.shutdownGracefully();
-        globalTrafficShapingHandler.release();
+        if (globalTrafficShapingHandler != null) {
+            globalTrafficShapingHandler.release();
+        }
         executorService.shutdown();
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdown();
+        }
+        if (storeWriterExecutor != null) {
+            storeWriterExecutor.shutdown();
+        }
+        if (transferExecutor != null) {
+            transferExecutor.shutdown();
+        }
     }
 
     public boolean isAcceptAuthProt() {
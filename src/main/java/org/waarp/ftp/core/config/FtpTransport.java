@@ -0,0 +1,314 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpNettyUtil;
+
+/**
+ * Network transport used by all the event loop groups: NIO (all platforms, the default) or native
+ * EPOLL (Linux only, falling back to NIO when not available). The netty-transport-native-epoll
+ * dependency is optional: epoll classes are only referenced from this class, and only used once
+ * EPOLL is checked as available or behind a NoClassDefFoundError guard.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public enum FtpTransport {
+    /**
+     * Java NIO transport
+     */
+    NIO,
+    /**
+     * Native epoll transport (Linux)
+     */
+    EPOLL;
+
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpTransport.class);
+
+    /**
+     * 
+     * @param transport
+     *            the wanted transport
+     * @return the transport to really use (NIO if EPOLL is not available)
+     */
+    public static FtpTransport getAvailable(FtpTransport transport) {
+        if (transport == EPOLL && !isEpollAvailable()) {
+            return NIO;
+        }
+        return transport;
+    }
+
+    /**
+     * 
+     * @return True if the native epoll transport is in the classpath and usable
+     */
+    private static boolean isEpollAvailable() {
+        try {
+            if (!Epoll.isAvailable()) {
+                logger.warn("Epoll transport not available, use NIO instead: {}",
+                        Epoll.unavailabilityCause().getMessage());
+                return false;
+            }
+            return true;
+        } catch (NoClassDefFoundError e) {
+            logger.warn("Epoll transport not in the classpath, use NIO instead");
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @param channel
+     * @return True if data could be spliced from this channel to a file (epoll channel in edge
+     *         triggered mode)
+     */
+    public static boolean isSpliceCapable(Channel channel) {
+        try {
+            return channel instanceof EpollSocketChannel &&
+                    ((EpollSocketChannel) channel).config().getEpollMode() ==
+                            EpollMode.EDGE_TRIGGERED;
+        } catch (NoClassDefFoundError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Splice up to length bytes from the channel to the beginning of the file
+     * 
+     * @param channel
+     *            a channel checked by isSpliceCapable
+     * @param file
+     * @param length
+     * @param listener
+     *            called once length bytes are spliced or on error
+     * @return the native file descriptor of the file, to be closed once the Store is over
+     * @throws IOException
+     *             if the file cannot be opened or epoll is not available
+     */
+    public static Closeable spliceTo(Channel channel, File file, int length,
+            ChannelFutureListener listener) throws IOException {
+        final FileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = FileDescriptor.from(file);
+            ((EpollSocketChannel) channel).spliceTo(fileDescriptor, 0, length)
+                    .addListener(listener);
+        } catch (NoClassDefFoundError e) {
+            throw new IOException("Epoll transport not in the classpath", e);
+        }
+        return new Closeable() {
+            public void close() throws IOException {
+                fileDescriptor.close();
+            }
+        };
+    }
+
+    /**
+     * 
+     * @param name
+     * @return the transport from its name (NIO by default)
+     */
+    public static FtpTransport getFromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown transport {}, use NIO instead", name);
+            return NIO;
+        }
+    }
+
+    /**
+     * 
+     * @param nbThreads
+     * @param threadFactory
+     * @return a new EventLoopGroup for this transport
+     */
+    public EventLoopGroup newEventLoopGroup(int nbThreads, ThreadFactory threadFactory) {
+        if (this == EPOLL) {
+            return new EpollEventLoopGroup(nbThreads, threadFactory);
+        }
+        return new NioEventLoopGroup(nbThreads, threadFactory);
+    }
+
+    /**
+     * 
+     * @return the ServerChannel class for this transport
+     */
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        if (this == EPOLL) {
+            return EpollServerSocketChannel.class;
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    /**
+     * 
+     * @return the Channel class for this transport
+     */
+    public Class<? extends Channel> getChannelClass() {
+        if (this == EPOLL) {
+            return EpollSocketChannel.class;
+        }
+        return NioSocketChannel.class;
+    }
+
+    /**
+     * Set the ServerBootstrap as WaarpNettyUtil does, but for this transport
+     * 
+     * @param bootstrap
+     * @param parentGroup
+     * @param childGroup
+     * @param timeout
+     */
+    public void setServerBootstrap(ServerBootstrap bootstrap, EventLoopGroup parentGroup,
+            EventLoopGroup childGroup, int timeout) {
+        if (this == NIO) {
+            WaarpNettyUtil.setServerBootstrap(bootstrap, parentGroup, childGroup, timeout);
+            return;
+        }
+        ServerBootstrap template = new ServerBootstrap();
+        WaarpNettyUtil.setServerBootstrap(template, parentGroup, childGroup, timeout);
+        bootstrap.channel(getServerChannelClass());
+        bootstrap.group(parentGroup, childGroup);
+        for (Entry<ChannelOption<?>, Object> entry : template.config().options().entrySet()) {
+            setOption(bootstrap, entry.getKey(), entry.getValue(), false);
+        }
+        for (Entry<ChannelOption<?>, Object> entry : template.config().childOptions().entrySet()) {
+            setOption(bootstrap, entry.getKey(), entry.getValue(), true);
+        }
+    }
+
+    /**
+     * Set the Bootstrap as WaarpNettyUtil does, but for this transport
+     * 
+     * @param bootstrap
+     * @param group
+     * @param timeout
+     */
+    public void setBootstrap(Bootstrap bootstrap, EventLoopGroup group, int timeout) {
+        if (this == NIO) {
+            WaarpNettyUtil.setBootstrap(bootstrap, group, timeout);
+            return;
+        }
+        Bootstrap template = new Bootstrap();
+        WaarpNettyUtil.setBootstrap(template, group, timeout);
+        bootstrap.channel(getChannelClass());
+        bootstrap.group(group);
+        for (Entry<ChannelOption<?>, Object> entry : template.config().options().entrySet()) {
+            setOption(bootstrap, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Set the specific options of this transport on a listening socket (SO_REUSEPORT, Command
+     * port only, since passive data ports must stay bound to one session) and on its accepted
+     * channels (data options if data is True)
+     * 
+     * @param bootstrap
+     * @param configuration
+     * @param data
+     */
+    public void setServerOptions(ServerBootstrap bootstrap, FtpConfiguration configuration,
+            boolean data) {
+        if (this != EPOLL) {
+            return;
+        }
+        if (!data) {
+            if (configuration.isReusePort()) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            return;
+        }
+        if (configuration.isTcpCork()) {
+            bootstrap.childOption(EpollChannelOption.TCP_CORK, true);
+        }
+        if (configuration.isTcpQuickAck()) {
+            bootstrap.childOption(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (configuration.getTcpNotSentLowAt() > 0) {
+            bootstrap.childOption(EpollChannelOption.TCP_NOTSENT_LOWAT,
+                    configuration.getTcpNotSentLowAt());
+        }
+    }
+
+    /**
+     * Set the specific options of this transport on active data channels
+     * 
+     * @param bootstrap
+     * @param configuration
+     */
+    public void setDataOptions(Bootstrap bootstrap, FtpConfiguration configuration) {
+        if (this != EPOLL) {
+            return;
+        }
+        if (configuration.isTcpCork()) {
+            bootstrap.option(EpollChannelOption.TCP_CORK, true);
+        }
+        if (configuration.isTcpQuickAck()) {
+            bootstrap.option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (configuration.getTcpNotSentLowAt() > 0) {
+            bootstrap.option(EpollChannelOption.TCP_NOTSENT_LOWAT,
+                    configuration.getTcpNotSentLowAt());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setOption(ServerBootstrap bootstrap, ChannelOption<?> option,
+            Object value, boolean child) {
+        if (child) {
+            bootstrap.childOption((ChannelOption<Object>) option, value);
+        } else {
+            bootstrap.option((ChannelOption<Object>) option, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setOption(Bootstrap bootstrap, ChannelOption<?> option, Object value) {
+        bootstrap.option((ChannelOption<Object>) option, value);
+    }
+}
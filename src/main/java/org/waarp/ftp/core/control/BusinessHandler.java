@@ -19,10 +19,12 @@ package org.waarp.ftp.core.control;
 
 import io.netty.channel.Channel;
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply501Exception;
 import org.waarp.common.file.Restart;
 import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
 import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.command.FtpCommandCode;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
 import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.file.FtpAuth;
 import org.waarp.ftp.core.file.FtpDir;
@@ -155,7 +157,8 @@ public abstract class BusinessHandler {
                 // .append(" \"filename\"")
                 .append('\n')
                 .append("LAN EN*").append('\n')
-                .append(FtpCommandCode.REST.name()).append(" STREAM\n");
+                .append(FtpCommandCode.REST.name()).append(" STREAM\n")
+                .append(FtpCommandCode.MODE.name()).append(" Z\n");
         //builder.append("UTF8");
         return builder.toString();
     }
@@ -208,6 +211,37 @@ public abstract class BusinessHandler {
         return args[0] + " " + FtpCommandCode.OPTS.name() + optsMLSx.getFeat();
     }
 
+    /**
+     * 
+     * @param args
+     * @return the string to return to the client for the OPTS command for the MODE Z argument
+     *         (OPTS MODE Z LEVEL n)
+     * @exception CommandAbstractException
+     */
+    protected String getModeZOptsMessage(String[] args) throws CommandAbstractException {
+        if (args.length < 2 || !args[1].equalsIgnoreCase("Z")) {
+            throw new Reply501Exception("OPTS MODE only supports Z");
+        }
+        FtpDataAsyncConn dataConn = getFtpSession().getDataConn();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("LEVEL") && i + 1 < args.length) {
+                int level = 0;
+                try {
+                    level = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    throw new Reply501Exception("Incorrect level: " + args[i]);
+                }
+                if (level < 0 || level > 9) {
+                    throw new Reply501Exception("Level must be between 0 and 9");
+                }
+                dataConn.setModeZLevel(level);
+            } else {
+                throw new Reply501Exception("Unsupported option: " + args[i]);
+            }
+        }
+        return FtpCommandCode.MODE.name() + " Z LEVEL " + dataConn.getModeZLevel();
+    }
+
     /**
      * Is executed when the channel is closed, just before cleaning and just after.<br>
      * <I>Note: In some circumstances, it could be a good idea to call the clean operation on
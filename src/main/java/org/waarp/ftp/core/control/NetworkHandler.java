@@ -20,6 +20,7 @@ package org.waarp.ftp.core.control;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
 import java.util.concurrent.RejectedExecutionException;
 
 import io.netty.channel.Channel;
@@ -35,7 +36,6 @@ import io.netty.util.concurrent.GenericFutureListener;
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply421Exception;
-import org.waarp.common.command.exception.Reply503Exception;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
@@ -63,6 +63,12 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
      */
     private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(NetworkHandler.class);
 
+    /**
+     * Number of commands received during a transfer above which the control connection is no
+     * more read until the transfer is over
+     */
+    private static final int MAX_PENDING_COMMANDS = 16;
+
     /**
      * Business Handler
      */
@@ -82,6 +88,18 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
      */
     private volatile ChannelHandlerContext ctx;
 
+    /**
+     * True while the final answer of a transfer command is not written yet (only used from the
+     * executor of this handler)
+     */
+    private boolean transferAnswerPending = false;
+
+    /**
+     * Commands received while a transfer command is not answered yet (only used from the executor
+     * of this handler)
+     */
+    private final LinkedList<String> pendingCommands = new LinkedList<String>();
+
     /**
      * Constructor from session
      * 
@@ -127,18 +145,8 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             super.channelInactive(ctx);
             return;
         }
-        // Wait for any command running before closing (bad client sometimes
-        // don't wait for answer)
-        int limit = 100;
-        while (session.getDataConn().getFtpTransferControl()
-                .isFtpTransferExecuting()) {
-            Thread.sleep(10);
-            limit--;
-            if (limit <= 0) {
-                logger.warn("Waiting for transfer finished but 1s is not enough");
-                break; // wait at most 1s
-            }
-        }
+        // Any transfer still running is aborted by the clear of the session
+        pendingCommands.clear();
         businessHandler.executeChannelClosed();
         // release file and other permanent objects
         businessHandler.clear();
@@ -280,48 +288,54 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             AbstractCommand command = FtpCommandCode.getFromLine(getFtpSession(), message);
             logger.debug("RECVMSG: {} CMD: {} " + command.getCode(), message, command.getCommand());
             // First check if the command is an ABORT, QUIT or STAT
-            if (!FtpCommandCode.isSpecialCommand(command.getCode())) {
+            if (!FtpCommandCode.isSpecialCommand(command.getCode()) &&
+                    (transferAnswerPending || !pendingCommands.isEmpty())) {
                 // Now check if a transfer is on its way: illegal to have at
-                // same time two commands (except ABORT). Wait is at most 100x
-                // RETRYINMS=1s
-                FtpTransferControl control = session.getDataConn().getFtpTransferControl();
-                boolean notFinished = control.waitFtpTransferExecuting();
-                if (notFinished) {
-                    session.setReplyCode(
-                            ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
-                            "Previous transfer command is not finished yet");
-                    businessHandler.afterRunCommandKo(
-                            new Reply503Exception(session.getReplyCode().getMesg()));
-                    writeIntermediateAnswer(ctx);
-                    return;
+                // same time two commands (except ABORT), so this one is run
+                // once the transfer is answered, after the ones already waiting
+                pendingCommands.add(message);
+                if (pendingCommands.size() >= MAX_PENDING_COMMANDS) {
+                    ctx.channel().config().setAutoRead(false);
                 }
-            }
-            // Default message
-            session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
-            // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
-            if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
                 return;
             }
-            if (session.getCurrentCommand().isNextCommandValid(command)) {
-                logger.debug("Previous: " + session.getCurrentCommand().getCode() +
-                        " Next: " + command.getCode());
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
-            } else {
-                if (!session.getAuth().isIdentified()) {
-                    session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
-                    session.setNextCommand(new USER());
-                    writeFinalAnswer(ctx);
-                    return;
-                }
-                command = new IncorrectCommand();
-                command.setArgs(getFtpSession(), message, null,
-                        FtpCommandCode.IncorrectSequence);
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
+            runCommand(ctx, message, command);
+        }
+    }
+
+    /**
+     * Run one received command
+     * 
+     * @param ctx
+     * @param message
+     * @param command
+     */
+    private void runCommand(ChannelHandlerContext ctx, String message, AbstractCommand command) {
+        // Default message
+        session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
+        // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
+        if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+            return;
+        }
+        if (session.getCurrentCommand().isNextCommandValid(command)) {
+            logger.debug("Previous: " + session.getCurrentCommand().getCode() +
+                    " Next: " + command.getCode());
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+        } else {
+            if (!session.getAuth().isIdentified()) {
+                session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
+                session.setNextCommand(new USER());
+                writeFinalAnswer(ctx);
+                return;
             }
+            command = new IncorrectCommand();
+            command.setArgs(getFtpSession(), message, null,
+                    FtpCommandCode.IncorrectSequence);
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
         }
     }
 
@@ -362,6 +376,110 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
         return writeIntermediateAnswer(ctx);
     }
 
+    /**
+     * Run a task on the executor of the commands of this session (from {@link FtpTransferControl}
+     * for the answers and the Business calls of a transfer): at once if called from it, so that
+     * the answers keep their order, else after the tasks already queued
+     *
+     * @param task
+     */
+    public void executeControlTask(Runnable task) {
+        final ChannelHandlerContext context = ctx;
+        if (context == null || context.executor().inEventLoop()) {
+            task.run();
+            return;
+        }
+        try {
+            context.executor().execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Control executor not available", e);
+            task.run();
+        }
+    }
+
+    /**
+     * Write the final answer of a transfer command once the transfer is over (from
+     * {@link FtpTransferControl}), then schedule the commands received in between
+     * 
+     * @param answer
+     *            the final answer, or null if the transfer was cleared without any answer
+     */
+    public void writeTransferAnswer(String answer) {
+        writeTransferAnswer(answer, null);
+    }
+
+    /**
+     * Write the final answer of a transfer command once the transfer is over or its data
+     * connection failed (from {@link FtpTransferControl}), then schedule the commands received in
+     * between
+     * 
+     * @param answer
+     *            the final answer, or null if the transfer was cleared without any answer
+     * @param error
+     *            the error of the command if any, so that the Business is informed of a failed
+     *            command
+     */
+    public void writeTransferAnswer(final String answer, final CommandAbstractException error) {
+        final ChannelHandlerContext context = ctx;
+        if (context == null) {
+            return;
+        }
+        if (!context.executor().inEventLoop()) {
+            context.executor().execute(new Runnable() {
+                public void run() {
+                    writeTransferAnswer(answer, error);
+                }
+            });
+            return;
+        }
+        if (answer != null) {
+            if (error != null) {
+                logger.debug("Command in error", error);
+                businessHandler.afterRunCommandKo(error);
+            } else {
+                try {
+                    businessHandler.afterRunCommandOk();
+                } catch (CommandAbstractException e) {
+                    logger.debug("Command in error after transfer", e);
+                    businessHandler.afterRunCommandKo(e);
+                }
+            }
+            logger.debug("Answer: " + answer);
+            context.writeAndFlush(answer);
+            session.setCurrentCommandFinished();
+        }
+        transferAnswerPending = false;
+        if (!pendingCommands.isEmpty()) {
+            // Never run the next commands within the current one (an ABOR aborting the transfer
+            // writes this answer from its own exec): they run once the current one is answered
+            context.executor().execute(new Runnable() {
+                public void run() {
+                    runPendingCommands(context);
+                }
+            });
+        }
+    }
+
+    /**
+     * Run the commands received while a transfer command was not answered, in order, until a new
+     * transfer command is pending
+     * 
+     * @param context
+     */
+    private void runPendingCommands(ChannelHandlerContext context) {
+        String message = null;
+        while (!transferAnswerPending && (message = pendingCommands.poll()) != null) {
+            if (!isStillAlive(context)) {
+                pendingCommands.clear();
+                return;
+            }
+            runCommand(context, message, FtpCommandCode.getFromLine(getFtpSession(), message));
+        }
+        if (pendingCommands.isEmpty() && context.channel().isActive()) {
+            context.channel().config().setAutoRead(true);
+        }
+    }
+
     /**
      * To be extended to inform of an error to SNMP support
      * 
@@ -383,6 +501,12 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             AbstractCommand command = session.getCurrentCommand();
             logger.debug("Run {}", command.getCommand());
             command.exec();
+            if (!transferAnswerPending &&
+                    session.getDataConn().getFtpTransferControl().deferAnswer()) {
+                // Final answer written once the transfer is over
+                transferAnswerPending = true;
+                return;
+            }
             businessHandler.afterRunCommandOk();
         } catch (CommandAbstractException e) {
             logger.debug("Command in error", e);
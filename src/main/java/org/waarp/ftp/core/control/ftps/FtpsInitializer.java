@@ -70,7 +70,8 @@ public class FtpsInitializer extends FtpInitializer {
         pipeline.addLast("encoder", ftpControlStringEncoder);
         // Threaded execution for business logic
 
-        EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration().getExecutor();
+        EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration()
+                .getSessionExecutor(ch);
         // and then business logic. New one on every connection
         BusinessHandler newbusiness = businessHandler.newInstance();
         SslNetworkHandler newNetworkHandler = new SslNetworkHandler(new FtpSession(
@@ -0,0 +1,139 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.file.FtpFile;
+
+/**
+ * Decides, for one MODE Z Retrieve, if compressing is worth it: files with an already compressed
+ * extension, a first block that does not compress well enough, or a system too loaded lead to a
+ * transfer with level 0 (stored deflate blocks, still a valid MODE Z stream).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+final class FtpAdaptiveCompression {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpAdaptiveCompression.class);
+
+    /**
+     * Maximum size of the sample
+     */
+    private static final int SAMPLE_SIZE = 16384;
+
+    /**
+     * Minimum size of the sample to be significant
+     */
+    private static final int MIN_SAMPLE_SIZE = 512;
+
+    /**
+     * Operating system bean (load average)
+     */
+    private static final OperatingSystemMXBean system = ManagementFactory
+            .getOperatingSystemMXBean();
+
+    private FtpAdaptiveCompression() {
+    }
+
+    /**
+     * 
+     * @param configuration
+     * @param file
+     *            the file to retrieve
+     * @param first
+     *            the first block to send (not modified)
+     * @param level
+     *            the negotiated level
+     * @return the level to use for this transfer (level or 0)
+     */
+    static int getLevel(FtpConfiguration configuration, FtpFile file, DataBlock first,
+            int level) {
+        if (level == 0 || !configuration.isAdaptiveModeZ()) {
+            return level;
+        }
+        try {
+            if (configuration.isIncompressible(file.getFile())) {
+                logger.debug("Incompressible file, MODE Z without compression");
+                return 0;
+            }
+        } catch (CommandAbstractException e) {
+            // no name so no check
+        }
+        int maxLoad = configuration.getMODEZMAXLOAD();
+        if (maxLoad > 0) {
+            double load = system.getSystemLoadAverage();
+            if (load >= 0 && load * 100 / system.getAvailableProcessors() > maxLoad) {
+                logger.debug("System too loaded, MODE Z without compression");
+                return 0;
+            }
+        }
+        int maxRatio = configuration.getMODEZMAXRATIO();
+        if (maxRatio < 100 && first != null && first.getBlock() != null) {
+            ByteBuf buf = first.getBlock();
+            int length = Math.min(buf.readableBytes(), SAMPLE_SIZE);
+            if (length >= MIN_SAMPLE_SIZE) {
+                byte[] sample = new byte[length];
+                buf.getBytes(buf.readerIndex(), sample);
+                if (getRatio(sample) > maxRatio) {
+                    logger.debug("Sample not compressible, MODE Z without compression");
+                    return 0;
+                }
+            }
+        }
+        return level;
+    }
+
+    /**
+     * 
+     * @param sample
+     * @return the percentage of the compressed size of the sample
+     */
+    private static int getRatio(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[sample.length];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                int size = deflater.deflate(out);
+                compressed += size;
+                if (compressed >= sample.length) {
+                    return 100;
+                }
+            }
+            return (int) ((long) compressed * 100 / sample.length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.data.handler.DataNetworkHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.session.FtpSession;
@@ -119,6 +120,11 @@ public class FtpDataAsyncConn {
      */
     private volatile FtpArgumentCode.TransferMode transferMode = FtpArgumentCode.TransferMode.STREAM;
 
+    /**
+     * Current compression level for MODE Z
+     */
+    private volatile int modeZLevel;
+
     /**
      * Constructor for Active session by default
      * 
@@ -134,6 +140,7 @@ public class FtpDataAsyncConn {
         passiveMode = false;
         isBind = false;
         transferControl = new FtpTransferControl(session);
+        modeZLevel = session.getConfiguration().getMODEZLEVEL();
     }
 
     /**
@@ -281,6 +288,22 @@ public class FtpDataAsyncConn {
         setCorrectCodec();
     }
 
+    /**
+     * @return the compression level for MODE Z
+     */
+    public int getModeZLevel() {
+        return modeZLevel;
+    }
+
+    /**
+     * @param modeZLevel
+     *            the compression level for MODE Z to set (0 to 9)
+     */
+    public void setModeZLevel(int modeZLevel) {
+        this.modeZLevel = modeZLevel;
+        setCorrectCodec();
+    }
+
     /**
      * @return the transferStructure
      */
@@ -342,13 +365,24 @@ public class FtpDataAsyncConn {
 
     /**
      * 
-     * @return True if the current mode for data connection is Stream
+     * @return True if the current mode for data connection is Stream (or Zlib, closed at the end
+     *         of each transfer too) + File
      */
     public boolean isStreamFile() {
-        return transferMode == TransferMode.STREAM &&
+        return (transferMode == TransferMode.STREAM || transferMode == TransferMode.ZLIB) &&
                 transferStructure == TransferStructure.FILE;
     }
 
+    /**
+     * 
+     * @return True if the current mode for data connection is Stream + File + Image, so without any
+     *         transformation of the data
+     */
+    public boolean isStreamFileImage() {
+        return transferMode == TransferMode.STREAM &&
+                transferStructure == TransferStructure.FILE && transferType == TransferType.IMAGE;
+    }
+
     /**
      * This function must be called after any changes of parameters, ie after MODE, STRU, TYPE
      * 
@@ -376,7 +410,7 @@ public class FtpDataAsyncConn {
             // Previous mode was Passive so remove the current configuration if
             // any
             InetAddress remote = remoteAddress.getAddress();
-            session.getConfiguration().delFtpSession(remote, local);
+            session.getConfiguration().delFtpSession(remote, local, session);
         }
         dataChannel = null;
         dataNetworkHandler = null;
@@ -392,8 +426,14 @@ public class FtpDataAsyncConn {
         unbindPassive();
         if (passiveMode) {
             // Connection is enable but the client will do the real connection
-            session.getConfiguration().getFtpInternalConfiguration()
-                    .bindPassive(getLocalAddress(), session.isDataSsl());
+            FtpInternalConfiguration internalConfiguration = session.getConfiguration()
+                    .getFtpInternalConfiguration();
+            if (internalConfiguration.isSharedPassive()) {
+                internalConfiguration.reserveSharedPassive(getLocalAddress(),
+                        remoteAddress.getAddress(), session.isDataSsl(), session);
+            } else {
+                internalConfiguration.bindPassive(getLocalAddress(), session.isDataSsl());
+            }
             isBind = true;
             return true;
         }
@@ -445,6 +485,21 @@ public class FtpDataAsyncConn {
         return configuration.getNextRangePort();
     }
 
+    /**
+     * 
+     * @return a new Passive Port for this session (a shared one not yet reserved for this client
+     *         in shared Passive mode)
+     */
+    public int getNewPassivePort() {
+        FtpInternalConfiguration internalConfiguration = session.getConfiguration()
+                .getFtpInternalConfiguration();
+        if (internalConfiguration.isSharedPassive()) {
+            return internalConfiguration.getSharedPassivePort(remoteAddress.getAddress(),
+                    localAddress.getAddress(), session.isDataSsl());
+        }
+        return getNewPassivePort(session.getConfiguration());
+    }
+
     /**
      * @return The current status in String of the different parameters
      */
@@ -0,0 +1,434 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpInternalConfiguration;
+import org.waarp.ftp.core.data.handler.DataNetworkHandler;
+import org.waarp.ftp.core.data.handler.FtpDataBlock;
+import org.waarp.ftp.core.data.handler.FtpDataInitializer;
+import org.waarp.ftp.core.data.handler.FtpDataModeCodec;
+import org.waarp.ftp.core.exception.FtpNoConnectionException;
+import org.waarp.ftp.core.file.FtpFile;
+import org.waarp.ftp.core.session.FtpSession;
+
+/**
+ * Pipelined Retrieve engine: keeps a window of blocks (and bytes) in flight on the data channel
+ * instead of waiting for each block to be written before reading the next one.<br>
+ * Blocks are read ahead from the disk by a reader task run on the read ahead executor, up to
+ * READAHEAD blocks per transfer and READAHEADGLOBALSIZE bytes for all transfers (at least one
+ * block is always allowed). Only the writes and the window accounting are done from the executor
+ * of the {@link DataNetworkHandler}, so a slow disk never stalls the handlers of other sessions
+ * sharing this executor, and nothing ever waits for the reader: when no block is ready, the pump
+ * simply returns and the reader reschedules it once a block is read. The engine pauses as soon as
+ * the window is full or the channel is no more writable, and resumes from the write listeners or
+ * from channelWritabilityChanged of {@link DataNetworkHandler}.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpRetrieveEngine implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpRetrieveEngine.class);
+
+    /**
+     * Ftp Session
+     */
+    private final FtpSession session;
+
+    /**
+     * File to retrieve
+     */
+    private final FtpFile file;
+
+    /**
+     * Data channel
+     */
+    private final Channel channel;
+
+    /**
+     * Executor where the writes are done
+     */
+    private final EventExecutor executor;
+
+    /**
+     * Executor where the disk reads are done
+     */
+    private final Executor diskExecutor;
+
+    /**
+     * Internal configuration (global read ahead limit)
+     */
+    private final FtpInternalConfiguration internalConfiguration;
+
+    /**
+     * Maximum number of blocks read ahead
+     */
+    private final int aheadBlocks;
+
+    /**
+     * Size of one block as accounted in the global read ahead limit
+     */
+    private final int blockSize;
+
+    /**
+     * Maximum number of blocks in flight
+     */
+    private final int maxBlocks;
+
+    /**
+     * Maximum number of bytes in flight
+     */
+    private final long maxBytes;
+
+    /**
+     * Blocks read and not yet written
+     */
+    private final ConcurrentLinkedQueue<DataBlock> ready = new ConcurrentLinkedQueue<DataBlock>();
+
+    /**
+     * Current number of blocks read and not yet written
+     */
+    private final AtomicInteger readyBlocks = new AtomicInteger(0);
+
+    /**
+     * Current number of blocks in flight
+     */
+    private final AtomicInteger inFlightBlocks = new AtomicInteger(0);
+
+    /**
+     * Current number of bytes in flight
+     */
+    private final AtomicLong inFlightBytes = new AtomicLong(0);
+
+    /**
+     * True when the reader task is scheduled or running (or when the file is released)
+     */
+    private final AtomicBoolean reading = new AtomicBoolean(false);
+
+    /**
+     * True once the last block is read (set after it is queued)
+     */
+    private volatile boolean endOfFile = false;
+
+    /**
+     * True when the transfer is over (success or error)
+     */
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * True until the first block is read (only used from the reader)
+     */
+    private boolean firstBlock = true;
+
+    /**
+     * The reader task
+     */
+    private final Runnable reader = new Runnable() {
+        public void run() {
+            read();
+        }
+    };
+
+    /**
+     * @param session
+     * @param file
+     * @param channel
+     * @throws FtpNoConnectionException
+     */
+    public FtpRetrieveEngine(FtpSession session, FtpFile file, Channel channel)
+            throws FtpNoConnectionException {
+        this.session = session;
+        this.file = file;
+        this.channel = channel;
+        ChannelHandlerContext ctx = channel.pipeline().context(FtpDataInitializer.HANDLER);
+        if (ctx == null) {
+            throw new FtpNoConnectionException("No Data Handler active");
+        }
+        executor = ctx.executor();
+        FtpConfiguration configuration = session.getConfiguration();
+        internalConfiguration = configuration.getFtpInternalConfiguration();
+        Executor readAheadExecutor = internalConfiguration.getReadAheadExecutor();
+        diskExecutor = readAheadExecutor != null ? readAheadExecutor : executor;
+        aheadBlocks = configuration.getREADAHEAD() > 0 ? configuration.getREADAHEAD() : 1;
+        blockSize = session.getBlockSize();
+        maxBlocks = configuration.getRETRIEVEWINDOW();
+        maxBytes = configuration.getRetrieveWindowBytes();
+    }
+
+    /**
+     * Start the pipelined retrieve (returns immediately)
+     */
+    public void start() {
+        try {
+            session.getDataConn().getDataNetworkHandler().setRetrieveEngine(this);
+        } catch (FtpNoConnectionException e) {
+            logger.debug("No more connection", e);
+            finish(false);
+            return;
+        }
+        scheduleRead();
+    }
+
+    /**
+     * Resume the pump if possible (from write listeners or writability change)
+     */
+    public void resume() {
+        if (finished.get()) {
+            return;
+        }
+        if (executor.inEventLoop()) {
+            run();
+        } else {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * 
+     * @return True if the reader should read a new block
+     */
+    private boolean canRead() {
+        return !finished.get() && !endOfFile && readyBlocks.get() < aheadBlocks;
+    }
+
+    /**
+     * Schedule the reader if needed and not already scheduled
+     */
+    private void scheduleRead() {
+        if (canRead() && reading.compareAndSet(false, true)) {
+            try {
+                diskExecutor.execute(reader);
+            } catch (RejectedExecutionException e) {
+                reading.set(false);
+                logger.debug("Read ahead executor not available", e);
+                finish(false);
+            }
+        }
+    }
+
+    /**
+     * Read blocks ahead of the network (from the disk executor)
+     */
+    private void read() {
+        try {
+            while (canRead()) {
+                if (readyBlocks.get() == 0) {
+                    // always allow one block so that the transfer goes on
+                    internalConfiguration.forceReadAhead(blockSize);
+                } else if (!internalConfiguration.reserveReadAhead(blockSize)) {
+                    // global limit reached: the pump reschedules the reader once a block is sent
+                    break;
+                }
+                DataBlock block = null;
+                try {
+                    block = file.readDataBlock();
+                } catch (FileEndOfTransferException e) {
+                    block = null;
+                } catch (FileTransferException e) {
+                    internalConfiguration.releaseReadAhead(blockSize);
+                    throw e;
+                }
+                if (block == null) {
+                    internalConfiguration.releaseReadAhead(blockSize);
+                } else {
+                    if (firstBlock) {
+                        firstBlock = false;
+                        adaptCompression(block);
+                    }
+                    ready.add(block);
+                    readyBlocks.incrementAndGet();
+                }
+                if (block == null || block.isEOF()) {
+                    // Last block (in fact, previous block could be the last one, but it could
+                    // be aligned with the block size so not detected)
+                    file.closeFile();
+                    endOfFile = true;
+                }
+                resume();
+            }
+        } catch (FileTransferException e) {
+            logger.debug("Read is not successful", e);
+            finish(false);
+        } catch (CommandAbstractException e) {
+            logger.error("Should not be", e);
+            finish(false);
+        } finally {
+            reading.set(false);
+        }
+        if (finished.get()) {
+            release();
+        } else {
+            scheduleRead();
+        }
+    }
+
+    /**
+     * Internal method, should not be called directly
+     */
+    public void run() {
+        boolean written = false;
+        try {
+            while (!finished.get() && channel.isActive() && channel.isWritable() &&
+                    inFlightBlocks.get() < maxBlocks && inFlightBytes.get() < maxBytes) {
+                DataBlock block = ready.poll();
+                if (block == null) {
+                    break;
+                }
+                readyBlocks.decrementAndGet();
+                internalConfiguration.releaseReadAhead(blockSize);
+                final int size = block.getByteCount();
+                inFlightBlocks.incrementAndGet();
+                inFlightBytes.addAndGet(size);
+                channel.write(block).addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        blockWritten(future, size);
+                    }
+                });
+                written = true;
+            }
+        } finally {
+            if (written) {
+                channel.flush();
+            }
+        }
+        if (endOfFile && readyBlocks.get() == 0 && inFlightBlocks.get() == 0) {
+            finish(true);
+            return;
+        }
+        if (!channel.isActive()) {
+            // no write in flight will ever report this closure
+            finish(false);
+            return;
+        }
+        scheduleRead();
+    }
+
+    /**
+     * Abort the transfer (from channelInactive of {@link DataNetworkHandler}), releasing the
+     * blocks read ahead and their reservation in the global read ahead limit
+     */
+    public void abort() {
+        finish(false);
+    }
+
+    /**
+     * In MODE Z, choose the compression level of this transfer from its first block
+     * 
+     * @param block
+     */
+    private void adaptCompression(DataBlock block) {
+        FtpDataAsyncConn dataConn = session.getDataConn();
+        if (dataConn.getMode() != TransferMode.ZLIB) {
+            return;
+        }
+        int level = FtpAdaptiveCompression.getLevel(session.getConfiguration(), file, block,
+                dataConn.getModeZLevel());
+        ChannelHandler handler = channel.pipeline().get(FtpDataInitializer.CODEC_MODE);
+        if (handler instanceof FtpDataModeCodec) {
+            ((FtpDataModeCodec) handler).setLevel(level);
+        }
+    }
+
+    /**
+     * Called once a block is written
+     * 
+     * @param future
+     * @param size
+     */
+    private void blockWritten(ChannelFuture future, int size) {
+        inFlightBytes.addAndGet(-size);
+        inFlightBlocks.decrementAndGet();
+        if (!future.isSuccess()) {
+            logger.debug("Write is not successful", future.cause());
+            finish(false);
+            return;
+        }
+        resume();
+    }
+
+    /**
+     * Release the file and the blocks not yet written, once and only when the reader is not
+     * running (the reader is then never scheduled again)
+     */
+    private void release() {
+        if (!reading.compareAndSet(false, true)) {
+            // the reader will release them once over
+            return;
+        }
+        DataBlock block = null;
+        while ((block = ready.poll()) != null) {
+            readyBlocks.decrementAndGet();
+            internalConfiguration.releaseReadAhead(blockSize);
+            FtpDataBlock.release(block);
+        }
+        if (!endOfFile) {
+            try {
+                file.closeFile();
+            } catch (CommandAbstractException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Finalize the transfer once
+     * 
+     * @param success
+     */
+    private void finish(boolean success) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            session.getDataConn().getDataNetworkHandler().setRetrieveEngine(null);
+        } catch (FtpNoConnectionException e) {
+            // ignore
+        }
+        release();
+        if (success) {
+            session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+        } else {
+            session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Serial executor of the transfer tasks of one session over the executor shared by all
+ * sessions: tasks of one session run one at a time and in order, while no thread is dedicated to
+ * a session.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FtpSessionExecutor implements Executor, Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpSessionExecutor.class);
+
+    /**
+     * Executor shared by all sessions
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Tasks not yet run
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * True when a drain is scheduled or running
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * @param executor
+     *            the executor shared by all sessions (if null, tasks are run by the caller)
+     */
+    FtpSessionExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Add a task to run after all the previous ones of this session
+     * 
+     * @throws RejectedExecutionException
+     *             if the shared executor is shut down
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    /**
+     * Schedule the drain if not already scheduled
+     */
+    private void schedule() {
+        if (running.compareAndSet(false, true)) {
+            if (executor == null) {
+                // no shared executor (server not started): run in the caller
+                run();
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                tasks.clear();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Discard the tasks not yet run
+     */
+    void clear() {
+        tasks.clear();
+    }
+
+    /**
+     * Internal method, should not be called directly
+     */
+    public void run() {
+        try {
+            Runnable task = null;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Transfer task in error", e);
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+        if (!tasks.isEmpty()) {
+            try {
+                schedule();
+            } catch (RejectedExecutionException e) {
+                logger.debug("Transfer executor not available", e);
+            }
+        }
+    }
+}
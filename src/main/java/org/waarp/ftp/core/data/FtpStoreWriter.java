@@ -0,0 +1,372 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.data.handler.DataNetworkHandler;
+import org.waarp.ftp.core.data.handler.FtpDataBlock;
+import org.waarp.ftp.core.exception.FtpNoFileException;
+import org.waarp.ftp.core.session.FtpSession;
+
+/**
+ * Asynchronous disk writer for Store like operations (STOR, APPE, STOU): received blocks are
+ * queued by the {@link DataNetworkHandler} and written to the file by the disk writer executor,
+ * so that a slow disk never stalls the data executor.<br>
+ * The queue is bounded: when full, autoRead is switched off on the data channel, and it is
+ * switched on again once the queue is half drained. AutoRead is only changed from the event loop
+ * of the data channel, after checking again the current size of the queue, so that the writer and
+ * the data executor never race on it. The end of transfer is only set once all
+ * queued blocks are written.<br>
+ * In STREAM (or ZLIB) mode, received blocks (usually one per network read) are coalesced up to BLOCKSIZE
+ * before being written through one gathering write, in order to limit the number of writes on
+ * the file without copying them.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpStoreWriter implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpStoreWriter.class);
+
+    /**
+     * Ftp Session
+     */
+    private final FtpSession session;
+
+    /**
+     * Current Store transfer
+     */
+    private final FtpTransfer transfer;
+
+    /**
+     * Data channel
+     */
+    private final Channel channel;
+
+    /**
+     * Executor where the blocks are written
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Maximum number of queued blocks before switching off autoRead
+     */
+    private final int maxBlocks;
+
+    /**
+     * Number of queued blocks under which autoRead is switched on again
+     */
+    private final int lowBlocks;
+
+    /**
+     * Size from which coalesced blocks are written
+     */
+    private final int blockSize;
+
+    /**
+     * True if received blocks could be coalesced (STREAM mode)
+     */
+    private final boolean coalesce;
+
+    /**
+     * Coalesced blocks not yet written (only used from run)
+     */
+    private CompositeByteBuf pending = null;
+
+    /**
+     * Queued blocks
+     */
+    private final ConcurrentLinkedQueue<DataBlock> queue = new ConcurrentLinkedQueue<DataBlock>();
+
+    /**
+     * Current number of queued blocks
+     */
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    /**
+     * True when a drain task is scheduled or running
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * True when autoRead was switched off by this writer (only changed from the event loop)
+     */
+    private volatile boolean paused = false;
+
+    /**
+     * Switch autoRead according to the current size of the queue (from the event loop)
+     */
+    private final Runnable flowControl = new Runnable() {
+        public void run() {
+            int current = queued.get();
+            if (!paused && current >= maxBlocks && !finished.get()) {
+                paused = true;
+                channel.config().setAutoRead(false);
+            } else if (paused && current <= lowBlocks) {
+                paused = false;
+                if (!finished.get()) {
+                    channel.config().setAutoRead(true);
+                }
+            }
+        }
+    };
+
+    /**
+     * True once the data channel is closed (no more block will come)
+     */
+    private volatile boolean endRequested = false;
+
+    /**
+     * True when the transfer is over (success, error or discarded)
+     */
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * @param session
+     * @param transfer
+     * @param channel
+     */
+    public FtpStoreWriter(FtpSession session, FtpTransfer transfer, Channel channel) {
+        this.session = session;
+        this.transfer = transfer;
+        this.channel = channel;
+        executor = session.getConfiguration().getFtpInternalConfiguration()
+                .getStoreWriterExecutor();
+        maxBlocks = session.getConfiguration().getSTOREQUEUE();
+        lowBlocks = maxBlocks / 2;
+        blockSize = session.getConfiguration().getBLOCKSIZE();
+        coalesce = session.getDataConn().getMode() == TransferMode.STREAM ||
+                session.getDataConn().getMode() == TransferMode.ZLIB;
+    }
+
+    /**
+     * Add a received block to the queue (from the data executor). The block will be released
+     * once written.
+     * 
+     * @param dataBlock
+     */
+    public void offer(DataBlock dataBlock) {
+        if (finished.get()) {
+            FtpDataBlock.release(dataBlock);
+            return;
+        }
+        queue.add(dataBlock);
+        if (queued.incrementAndGet() >= maxBlocks && !paused) {
+            updateAutoRead();
+        }
+        schedule();
+    }
+
+    /**
+     * Called when the data channel is closed: the end of transfer will be set once all queued
+     * blocks are written
+     */
+    public void end() {
+        endRequested = true;
+        schedule();
+    }
+
+    /**
+     * Discard all queued blocks without setting any status (transfer already aborted)
+     */
+    public void discard() {
+        if (finished.compareAndSet(false, true)) {
+            releaseAll();
+            // let the drain release any coalesced blocks
+            schedule();
+        }
+    }
+
+    /**
+     * Schedule the drain if not already scheduled
+     */
+    private void schedule() {
+        if (running.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                logger.debug("Store writer not available", e);
+                finish(false);
+            }
+        }
+    }
+
+    /**
+     * Internal method, should not be called directly
+     */
+    public void run() {
+        boolean done = false;
+        try {
+            DataBlock dataBlock = null;
+            while ((dataBlock = queue.poll()) != null) {
+                int left = queued.decrementAndGet();
+                if (finished.get()) {
+                    FtpDataBlock.release(dataBlock);
+                } else if (coalesce && !dataBlock.isEOF()) {
+                    addPending(dataBlock.getBlock());
+                    FtpDataBlock.recycle(dataBlock);
+                    if (pending.readableBytes() >= blockSize) {
+                        writePending();
+                    }
+                } else {
+                    writePending();
+                    write(dataBlock);
+                }
+                if (paused && left <= lowBlocks) {
+                    updateAutoRead();
+                }
+            }
+            if (finished.get()) {
+                releasePending();
+            } else if (endRequested && queue.isEmpty()) {
+                writePending();
+                done = true;
+            }
+        } finally {
+            running.set(false);
+        }
+        if (done) {
+            finish(true);
+        } else if (!queue.isEmpty() || (endRequested && !finished.get())) {
+            schedule();
+        }
+    }
+
+    /**
+     * Ask the event loop of the data channel to switch autoRead if still needed
+     */
+    private void updateAutoRead() {
+        if (channel.eventLoop().inEventLoop()) {
+            flowControl.run();
+        } else {
+            channel.eventLoop().execute(flowControl);
+        }
+    }
+
+    /**
+     * Add a received buffer to the coalesced blocks
+     * 
+     * @param buffer
+     */
+    private void addPending(ByteBuf buffer) {
+        if (pending == null) {
+            // Number of components is bounded by BLOCKSIZE anyway
+            pending = channel.alloc().compositeBuffer(Integer.MAX_VALUE);
+        }
+        pending.addComponent(true, buffer);
+    }
+
+    /**
+     * Write the coalesced blocks if any at once through a gathering write of their components
+     */
+    private void writePending() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            if (!finished.get()) {
+                transfer.getFtpFile().writeDataBuffers(pending.nioBuffers());
+            }
+        } catch (FtpNoFileException e) {
+            logger.debug(e);
+            finish(false);
+        } catch (FileTransferException e) {
+            logger.debug(e);
+            finish(false);
+        } finally {
+            releasePending();
+        }
+    }
+
+    /**
+     * Release the coalesced blocks if any
+     */
+    private void releasePending() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+    }
+
+    /**
+     * Write one block to the file and release it
+     * 
+     * @param dataBlock
+     */
+    private void write(DataBlock dataBlock) {
+        try {
+            if (!finished.get()) {
+                transfer.getFtpFile().writeDataBlock(dataBlock);
+            }
+        } catch (FtpNoFileException e) {
+            logger.debug(e);
+            finish(false);
+        } catch (FileTransferException e) {
+            logger.debug(e);
+            finish(false);
+        } finally {
+            FtpDataBlock.release(dataBlock);
+        }
+    }
+
+    /**
+     * Finalize the transfer once
+     * 
+     * @param success
+     */
+    private void finish(boolean success) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        releaseAll();
+        if (success) {
+            session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+        } else {
+            session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
+        }
+    }
+
+    /**
+     * Release all queued blocks
+     */
+    private void releaseAll() {
+        DataBlock dataBlock = null;
+        while ((dataBlock = queue.poll()) != null) {
+            queued.decrementAndGet();
+            FtpDataBlock.release(dataBlock);
+        }
+    }
+}
@@ -20,25 +20,27 @@ package org.waarp.ftp.core.data;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
-import org.waarp.common.future.WaarpChannelFuture;
-import org.waarp.common.future.WaarpFuture;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.command.service.ABOR;
-import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.NetworkHandler;
 import org.waarp.ftp.core.data.handler.DataNetworkHandler;
@@ -49,12 +51,50 @@ import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
 
 /**
- * Main class that handles transfers and their execution
+ * Main class that handles transfers and their execution.<br>
+ * A transfer is driven by one atomic state (see {@link TransferState}): each event (data
+ * connection opened, transfer started, end of data, abort, clear) is a compare and set transition,
+ * and only the thread that wins the transition acts on it. The other values shared with the data
+ * connection are atomic too, handed over by get and set so that only one side uses them. Nobody
+ * waits for the end of a transfer: the answers and the Business calls of the transfer are run from
+ * the control executor of the session (see {@link NetworkHandler#executeControlTask(Runnable)}),
+ * the final answer being given once both the command returned and the transfer is closed.
  * 
  * @author Frederic Bregier
  * 
  */
 public class FtpTransferControl {
+    /**
+     * State of the current transfer
+     */
+    public static enum TransferState {
+        /**
+         * No transfer
+         */
+        IDLE,
+        /**
+         * Data connection being connected (Active) or waited for (Passive), the transfer could
+         * already be set
+         */
+        CONNECTING,
+        /**
+         * Data connection opened, transfer not yet started
+         */
+        DATA_OPEN,
+        /**
+         * Transfer running
+         */
+        RUNNING,
+        /**
+         * Transfer over (end of data or abort), being closed or aborted
+         */
+        DRAINING,
+        /**
+         * Transfer closed, final answer given
+         */
+        CLOSED
+    }
+
     /**
      * Internal Logger
      */
@@ -66,54 +106,63 @@ public class FtpTransferControl {
     private final FtpSession session;
 
     /**
-     * Step in order to wait that the DataNetworkHandler is ready
+     * Current state of the transfer
+     */
+    private final AtomicReference<TransferState> state = new AtomicReference<TransferState>(
+            TransferState.IDLE);
+
+    /**
+     * Number of events (command returned, transfer closed) still needed before the final answer
+     * of the transfer command could be written
      */
-    private volatile boolean isDataNetworkHandlerReady = false;
+    private final AtomicInteger answerBarrier = new AtomicInteger(0);
 
     /**
      * The associated DataChannel
      */
-    private volatile Channel dataChannel = null;
+    private final AtomicReference<Channel> dataChannel = new AtomicReference<Channel>();
 
     /**
-     * Waiter for the dataChannel to be opened
+     * Passive dataChannel opened before the transfer command
      */
-    private volatile WaarpChannelFuture waitForOpenedDataChannel = new WaarpChannelFuture(true);
+    private final AtomicReference<Channel> openedDataChannel = new AtomicReference<Channel>();
 
     /**
-     * Is the current Command Finished (or previously current command)
+     * Active data channel being connected (null while a Passive connection is waited for)
      */
-    private volatile boolean isExecutingCommandFinished = true;
+    private final AtomicReference<Channel> connectingChannel = new AtomicReference<Channel>();
+
     /**
-     * Waiter for the Command to be setup
+     * True while an Active connection is reserved from the configuration
      */
-    private volatile WaarpFuture commandSetup = null;
+    private final AtomicBoolean activeConnectReserved = new AtomicBoolean(false);
 
     /**
-     * Waiter for the Command finishing
+     * Timeout of the data connection being connected
      */
-    private volatile WaarpFuture commandFinishing = null;
+    private final AtomicReference<ScheduledFuture<?>> connectTimeout =
+            new AtomicReference<ScheduledFuture<?>>();
 
     /**
-     * Current command executed
+     * Transfer set while the data connection is being connected
      */
-    private volatile FtpTransfer executingCommand = null;
+    private final AtomicReference<FtpTransfer> pendingTransfer = new AtomicReference<FtpTransfer>();
 
     /**
-     * Thread pool for execution of transfer command
+     * Error of the data connection failed before the command returned, given to the command
      */
-    private ExecutorService executorService = null;
+    private final AtomicReference<CommandAbstractException> connectError =
+            new AtomicReference<CommandAbstractException>();
 
     /**
-     * Blocking step for the Executor in order to wait for the end of the command (internal wait,
-     * not to be used outside).
+     * Current command executed
      */
-    private volatile WaarpFuture endOfCommand = null;
+    private volatile FtpTransfer executingCommand = null;
 
     /**
-     * A boolean to know if Check was called once
+     * Serial executor of the transfer tasks of this session, over the shared transfer executor
      */
-    private volatile boolean isCheckAlreadyCalled = false;
+    private volatile FtpSessionExecutor executorService = null;
 
     /**
      * 
@@ -121,32 +170,45 @@ public class FtpTransferControl {
      */
     public FtpTransferControl(FtpSession session) {
         this.session = session;
-        endOfCommand = null;
     }
 
-    // XXX DataNetworkHandler functions
     /**
-     * The DataNetworkHandler is ready (from setNewFtpExecuteTransfer)
      * 
+     * @return the current state of the transfer
      */
-    private void setDataNetworkHandlerReady() {
-        isCheckAlreadyCalled = false;
-        isDataNetworkHandlerReady = true;
+    public TransferState getTransferState() {
+        return state.get();
     }
 
     /**
-     * Wait for the DataNetworkHandler to be ready (from trueRetrieve of {@link FtpFile})
      * 
-     * @throws InterruptedException
+     * @param current
+     * @return True if no transfer is in progress in this state, so that a new one could start
+     */
+    private static boolean isIdle(TransferState current) {
+        return current == TransferState.IDLE || current == TransferState.CLOSED ||
+                current == TransferState.DATA_OPEN;
+    }
+
+    /**
+     * Run the task from the control executor of the session
      * 
+     * @param task
+     */
+    private void executeControlTask(Runnable task) {
+        session.getNetworkHandler().executeControlTask(task);
+    }
+
+    // XXX DataNetworkHandler functions
+    /**
+     * Check that the transfer is running (from trueRetrieve of {@link FtpFile})
+     * 
+     * @throws InterruptedException
+     *             if no transfer is running
      */
     public void waitForDataNetworkHandlerReady() throws InterruptedException {
-        if (!isDataNetworkHandlerReady) {
-            Thread.sleep(10);
-            if (!isDataNetworkHandlerReady) {
-                // logger.debug("Wait for DataNetwork Ready over {}");
-                throw new InterruptedException("Bad initialization");
-            }
+        if (state.get() != TransferState.RUNNING) {
+            throw new InterruptedException("Bad initialization");
         }
     }
 
@@ -161,64 +223,47 @@ public class FtpTransferControl {
         logger.debug("SetOpenedDataChannel: " + (channel != null ? channel.remoteAddress() : "no channel"));
         if (channel != null) {
             session.getDataConn().setDataNetworkHandler(dataNetworkHandler);
-            waitForOpenedDataChannel.setChannel(channel);
-            waitForOpenedDataChannel.setSuccess();
-        } else {
-            waitForOpenedDataChannel.cancel();
-        }
-    }
-
-    /**
-     * Wait that the new opened connection is ready (same method in {@link FtpDataAsyncConn} from
-     * openConnection)
-     * 
-     * @return the new opened Channel
-     * @throws InterruptedException
-     */
-    public Channel waitForOpenedDataChannel() throws InterruptedException {
-        Channel channel = null;
-        if (waitForOpenedDataChannel.await(
-                session.getConfiguration().getTIMEOUTCON() + 1000,
-                TimeUnit.MILLISECONDS)) {
-            if (waitForOpenedDataChannel.isSuccess()) {
-                channel = waitForOpenedDataChannel.channel();
-            } else {
-                logger.warn("data connection is in error");
+            if (dataConnectionReady(channel)) {
+                return;
+            }
+            // opened before the command (Passive): used by the command once received
+            openedDataChannel.set(channel);
+            // unless the command started to wait for it in between
+            if (state.get() == TransferState.CONNECTING &&
+                    openedDataChannel.compareAndSet(channel, null) &&
+                    !dataConnectionReady(channel)) {
+                openedDataChannel.compareAndSet(null, channel);
             }
         } else {
-            logger.warn("Timeout occurs during data connection");
+            openedDataChannel.set(null);
+            if (state.get() == TransferState.CONNECTING) {
+                Channel connecting = connectingChannel.get();
+                dataConnectionFailed(connecting, new Reply425Exception(connecting != null ?
+                        "Cannot open active data connection" :
+                        "Cannot open passive data connection"));
+            }
         }
-        return channel;
     }
 
     /**
-     * Allow to reset the waitForOpenedDataChannel
+     * Forget the Passive data channel opened before the transfer command if any
      */
     public void resetWaitForOpenedDataChannel() {
-        if (waitForOpenedDataChannel != null) {
-            waitForOpenedDataChannel.cancel();
-        }
-        waitForOpenedDataChannel = new WaarpChannelFuture(true);
+        openedDataChannel.set(null);
     }
 
     /**
-     * Wait for the client to be connected (Passive) or Wait for the server to be connected to the
-     * client (Active)
+     * Check if the client is already connected (Passive) or start the connection of the server to
+     * the client (Active). Nothing is waited: when the data connection is not yet opened, the 150
+     * answer is given once it is ready, and the transfer (if already set) is then started, while a
+     * failure gives the 425 final answer.
      * 
-     * @return True if the connection is OK
+     * @return True if the connection is OK, False if the connection is in progress
      * @throws Reply425Exception
      */
-    public synchronized boolean openDataConnection() throws Reply425Exception {
-        // Prepare this Data channel to be closed ;-)
-        // In fact, prepare the future close op which should occur since it is
-        // now opened
-        if (commandSetup != null) {
-            commandSetup.cancel();
-        }
-        commandSetup = new WaarpFuture(true);
-        FtpDataAsyncConn dataAsyncConn = session.getDataConn();
+    public boolean openDataConnection() throws Reply425Exception {
+        final FtpDataAsyncConn dataAsyncConn = session.getDataConn();
         if (!dataAsyncConn.isStreamFile()) {
-            // FIXME isActive or isDNHReady ?
             if (dataAsyncConn.isActive()) {
                 // Already connected
                 logger.debug("Connection already open");
@@ -226,6 +271,12 @@ public class FtpTransferControl {
                         ReplyCode.REPLY_125_DATA_CONNECTION_ALREADY_OPEN,
                         dataAsyncConn.getType().name() +
                                 " mode data connection already open");
+                try {
+                    dataChannel.set(dataAsyncConn.getCurrentDataChannel());
+                } catch (FtpNoConnectionException e) {
+                    // checked just before
+                }
+                startDataOpen();
                 return true;
             }
         } else {
@@ -233,7 +284,11 @@ public class FtpTransferControl {
             if (dataAsyncConn.isActive()) {
                 logger
                         .error("Connection already open but should not since in Stream mode");
-                setTransferAbortedFromInternal(false);
+                try {
+                    WaarpSslUtility.closingSslChannel(dataAsyncConn.getCurrentDataChannel());
+                } catch (FtpNoConnectionException e) {
+                    // checked just before
+                }
                 throw new Reply425Exception(
                         "Connection already open but should not since in Stream mode");
             }
@@ -247,11 +302,27 @@ public class FtpTransferControl {
                 throw new Reply425Exception(
                         "No passive data connection prepared");
             }
-            // Wait for the connection to be done by the client
-            logger.debug("Passive mode standby");
+            Channel opened = openedDataChannel.getAndSet(null);
+            if (opened == null) {
+                // The connection of the client is not waited: see setOpenedDataChannel
+                logger.debug("Passive mode standby");
+                startConnecting(null);
+                // unless it was opened in between
+                opened = openedDataChannel.getAndSet(null);
+                if (opened != null && !dataConnectionReady(opened)) {
+                    openedDataChannel.compareAndSet(null, opened);
+                }
+                Channel controlChannel = session.getControlChannel();
+                if (controlChannel != null) {
+                    scheduleConnectTimeout(controlChannel.eventLoop(), null,
+                            session.getConfiguration().getTIMEOUTCON() + 1000,
+                            "Cannot open passive data connection: timeout");
+                }
+                return false;
+            }
             try {
-                dataChannel = waitForOpenedDataChannel();
-                dataAsyncConn.setNewOpenedDataChannel(dataChannel);
+                dataChannel.set(opened);
+                dataAsyncConn.setNewOpenedDataChannel(opened);
             } catch (InterruptedException e) {
                 logger.warn("Connection abort in passive mode", e);
                 // Cannot open connection
@@ -269,176 +340,420 @@ public class FtpTransferControl {
                                 +
                                 inetSocketAddress);
             }
+            FtpInternalConfiguration internalConfiguration = session.getConfiguration()
+                    .getFtpInternalConfiguration();
+            if (!internalConfiguration.reserveActiveConnect()) {
+                throw new Reply425Exception(
+                        "Cannot open active data connection: too many connections in progress");
+            }
+            activeConnectReserved.set(true);
+            startConnecting(null);
             logger.debug("Active mode standby");
-            Bootstrap bootstrap = session.getConfiguration().getFtpInternalConfiguration()
-                    .getActiveBootstrap(session.isDataSsl());
+            Bootstrap bootstrap = internalConfiguration.getActiveBootstrap(session.isDataSsl());
             session.getConfiguration().setNewFtpSession(inetAddress, inetSocketAddress, session);
             // Set the session for the future dataChannel
-            String mylog = session.toString();
             logger.debug("DataConn for: " + session.getCurrentCommand().getCommand() + " to "
                     + inetSocketAddress.toString());
-            ChannelFuture future = bootstrap.connect(inetSocketAddress, dataAsyncConn.getLocalAddress());
-            try {
-                future.await();
-            } catch (InterruptedException e1) {
-            }
-            if (!future.isSuccess()) {
-                logger.warn("Connection abort in active mode from future while session: " +
-                        session.toString() +
-                        "\nTrying connect to: " + inetSocketAddress.toString() +
-                        " From: " + dataAsyncConn.getLocalAddress() +
-                        "\nWas: " + mylog,
-                        future.cause());
-                // Cannot open connection
-                session.getConfiguration().delFtpSession(inetAddress,
-                        inetSocketAddress);
-                throw new Reply425Exception(
-                        "Cannot open active data connection");
-            }
-            try {
-                dataChannel = waitForOpenedDataChannel();
-                dataAsyncConn.setNewOpenedDataChannel(dataChannel);
-            } catch (InterruptedException e) {
-                logger.warn("Connection abort in active mode", e);
-                // Cannot open connection
-                session.getConfiguration().delFtpSession(inetAddress,
-                        inetSocketAddress);
-                throw new Reply425Exception(
-                        "Cannot open active data connection");
+            final String mylog = session.toString();
+            final ChannelFuture future = bootstrap.connect(inetSocketAddress,
+                    dataAsyncConn.getLocalAddress());
+            final Channel channel = future.channel();
+            connectingChannel.set(channel);
+            future.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        logger.warn("Connection abort in active mode from future while session: " +
+                                session.toString() +
+                                "\nTrying connect to: " + dataAsyncConn.getRemoteAddress() +
+                                " From: " + dataAsyncConn.getLocalAddress() +
+                                "\nWas: " + mylog,
+                                future.cause());
+                        dataConnectionFailed(channel, new Reply425Exception(
+                                "Cannot open active data connection"));
+                    }
+                }
+            });
+            if (!future.isDone() || future.isSuccess()) {
+                // the deadline includes the SSL handshake if any
+                scheduleConnectTimeout(channel.eventLoop(), channel,
+                        session.getConfiguration().getACTIVECONNECTTIMEOUT(),
+                        "Cannot open active data connection: timeout");
             }
-            logger.debug("Active mode connected");
+            return false;
         }
-        if (dataChannel == null) {
+        if (dataChannel.get() == null) {
             // Cannot have a new Data connection since shutdown
             if (!dataAsyncConn.isPassiveMode()) {
                 session.getConfiguration().getFtpInternalConfiguration()
                         .delFtpSession(
                                 dataAsyncConn.getLocalAddress().getAddress(),
-                                dataAsyncConn.getRemoteAddress());
+                                dataAsyncConn.getRemoteAddress(), session);
             }
             throw new Reply425Exception(
                     "Cannot open data connection, shuting down");
         }
+        startDataOpen();
         return true;
     }
 
+    /**
+     * The data connection is already opened for the current command (to DATA_OPEN)
+     * 
+     * @throws Reply425Exception
+     *             if a transfer is still in progress
+     */
+    private void startDataOpen() throws Reply425Exception {
+        TransferState current = state.get();
+        if (!isIdle(current) || !state.compareAndSet(current, TransferState.DATA_OPEN)) {
+            throw new Reply425Exception("Data connection already in use by a transfer");
+        }
+    }
+
+    /**
+     * The data connection is being connected (to CONNECTING)
+     * 
+     * @param channel
+     *            the Active data channel being connected, null for Passive
+     * @throws Reply425Exception
+     *             if a transfer is still in progress
+     */
+    private void startConnecting(Channel channel) throws Reply425Exception {
+        TransferState current = state.get();
+        if (isIdle(current)) {
+            pendingTransfer.set(null);
+            connectError.set(null);
+            connectingChannel.set(channel);
+            // the command returning and the transfer closing (or the connection failing) are
+            // both needed for the final answer
+            answerBarrier.set(2);
+            if (state.compareAndSet(current, TransferState.CONNECTING)) {
+                return;
+            }
+            answerBarrier.set(0);
+        }
+        releaseActiveConnect();
+        throw new Reply425Exception("Data connection already in use by a transfer");
+    }
+
+    /**
+     * Schedule the timeout of the data connection being connected
+     * 
+     * @param eventLoop
+     * @param channel
+     *            the Active data channel being connected, null for Passive
+     * @param delay
+     *            in ms
+     * @param message
+     *            of the 425 answer
+     */
+    private void scheduleConnectTimeout(EventLoop eventLoop, final Channel channel, long delay,
+            final String message) {
+        ScheduledFuture<?> timeout = eventLoop.schedule(new Runnable() {
+            public void run() {
+                dataConnectionFailed(channel, new Reply425Exception(message));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = connectTimeout.getAndSet(timeout);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (state.get() != TransferState.CONNECTING) {
+            // ready or failed before the timeout was set
+            cancelConnectTimeout();
+        }
+    }
+
+    /**
+     * The data connection is ready (CONNECTING to DATA_OPEN): give the 150 answer and start the
+     * transfer if already set
+     * 
+     * @param channel
+     * @return True if the channel was the data connection being connected
+     */
+    private boolean dataConnectionReady(Channel channel) {
+        Channel connecting = connectingChannel.get();
+        if ((connecting != null && channel != connecting) ||
+                !state.compareAndSet(TransferState.CONNECTING, TransferState.DATA_OPEN)) {
+            return false;
+        }
+        connectingChannel.compareAndSet(connecting, null);
+        cancelConnectTimeout();
+        releaseActiveConnect();
+        final FtpDataAsyncConn dataAsyncConn = session.getDataConn();
+        try {
+            dataAsyncConn.setNewOpenedDataChannel(channel);
+        } catch (InterruptedException e) {
+            // channel is not null
+        } catch (Reply425Exception e) {
+            // channel is not null
+        }
+        dataChannel.set(channel);
+        logger.debug(dataAsyncConn.isPassiveMode() ? "Passive mode connected" :
+                "Active mode connected");
+        executeControlTask(new Runnable() {
+            public void run() {
+                session.setReplyCode(ReplyCode.REPLY_150_FILE_STATUS_OKAY, "Opening " +
+                        dataAsyncConn.getType().name() + " mode data connection");
+                session.getNetworkHandler().writeIntermediateAnswer();
+            }
+        });
+        FtpTransfer transfer = pendingTransfer.getAndSet(null);
+        if (transfer != null) {
+            runTransfer(transfer);
+        }
+        return true;
+    }
+
+    /**
+     * The data connection failed or is aborted before being ready (CONNECTING to IDLE): the
+     * command fails with the error, either when it sets its transfer or returns, or through the
+     * final answer if it already returned; the transfer if already set is forgotten
+     * 
+     * @param channel
+     *            the Active data channel being connected, null for Passive
+     * @param reply
+     *            the final answer (426 if null, as aborted)
+     * @return True if this call failed the connection
+     */
+    private boolean dataConnectionFailed(Channel channel, final CommandAbstractException reply) {
+        if (channel != connectingChannel.get() ||
+                !state.compareAndSet(TransferState.CONNECTING, TransferState.IDLE)) {
+            return false;
+        }
+        endActiveConnection();
+        FtpTransfer transfer = pendingTransfer.getAndSet(null);
+        if (transfer != null) {
+            abortPendingTransfer(transfer);
+        }
+        final CommandAbstractException error = reply != null ? reply :
+                new Reply425Exception("Data connection aborted");
+        // the command if not returned yet fails from setNewFtpTransfer or deferAnswer
+        connectError.set(error);
+        if (releaseAnswer() && connectError.compareAndSet(error, null)) {
+            executeControlTask(new Runnable() {
+                public void run() {
+                    if (reply != null) {
+                        session.setReplyCode(reply);
+                    } else {
+                        session.setReplyCode(
+                                ReplyCode.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED,
+                                "Transfer aborted");
+                    }
+                    session.getNetworkHandler().writeTransferAnswer(session.getAnswer(), error);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @throws CommandAbstractException
+     *             the error of the data connection failed before the command returned if any
+     */
+    private void checkConnectError() throws CommandAbstractException {
+        CommandAbstractException error = connectError.getAndSet(null);
+        if (error != null) {
+            answerBarrier.set(0);
+            throw error;
+        }
+    }
+
+    /**
+     * Release the Active connection reserved from the configuration if any
+     */
+    private void releaseActiveConnect() {
+        if (activeConnectReserved.getAndSet(false)) {
+            session.getConfiguration().getFtpInternalConfiguration().releaseActiveConnect();
+        }
+    }
+
+    /**
+     * Release the data connection being connected if any
+     */
+    private void endActiveConnection() {
+        cancelConnectTimeout();
+        releaseActiveConnect();
+        Channel channel = connectingChannel.getAndSet(null);
+        if (channel == null) {
+            return;
+        }
+        FtpDataAsyncConn dataAsyncConn = session.getDataConn();
+        session.getConfiguration().delFtpSession(dataAsyncConn.getLocalAddress().getAddress(),
+                dataAsyncConn.getRemoteAddress(), session);
+        WaarpSslUtility.closingSslChannel(channel);
+    }
+
+    /**
+     * Cancel the timeout of the data connection being connected if any
+     */
+    private void cancelConnectTimeout() {
+        ScheduledFuture<?> timeout = connectTimeout.getAndSet(null);
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Abort a transfer which never started
+     * 
+     * @param transfer
+     */
+    private void abortPendingTransfer(FtpTransfer transfer) {
+        try {
+            transfer.getFtpFile().abortFile();
+        } catch (FtpNoFileException e) {
+        } catch (CommandAbstractException e) {
+            logger.warn("Abort problem", e);
+        }
+        transfer.setStatus(false);
+    }
+
     // XXX FtpTransfer functions
     /**
-     * Run the command from an executor
+     * Start the transfer (DATA_OPEN to RUNNING): the transfer is launched from the executor and
+     * this method returns immediately. If the data connection is still being connected, the
+     * transfer is handed over to the connection event, which starts or aborts it.
+     * 
+     * @param transfer
+     * @throws CommandAbstractException
+     *             if the data connection already failed
+     */
+    private void startTransfer(FtpTransfer transfer) throws CommandAbstractException {
+        if (state.get() == TransferState.CONNECTING) {
+            pendingTransfer.set(transfer);
+            if (state.get() == TransferState.CONNECTING ||
+                    pendingTransfer.getAndSet(null) == null) {
+                // taken by the connection event
+                return;
+            }
+        }
+        if (state.get() != TransferState.DATA_OPEN || connectError.get() != null) {
+            abortPendingTransfer(transfer);
+            answerBarrier.set(0);
+            CommandAbstractException error = connectError.getAndSet(null);
+            throw error != null ? error : new Reply425Exception("Cannot open data connection");
+        }
+        // the command returning and the transfer closing are both needed for the final answer
+        answerBarrier.set(2);
+        runTransfer(transfer);
+    }
+
+    /**
+     * Launch the transfer from the executor (DATA_OPEN to RUNNING)
+     * 
+     * @param transfer
      */
-    private void runExecutor() {
-        endOfCommand = new WaarpFuture(true);
+    private void runTransfer(FtpTransfer transfer) {
+        logger.debug("setNewCommand: {}", transfer.getCommand());
+        executingCommand = transfer;
+        if (!state.compareAndSet(TransferState.DATA_OPEN, TransferState.RUNNING)) {
+            // aborted or cleared in between
+            logger.debug("Transfer not started while {}", state.get());
+            if (executingCommand == transfer) {
+                executingCommand = null;
+            }
+            abortPendingTransfer(transfer);
+            return;
+        }
         try {
-            session.getDataConn().getDataNetworkHandler().setFtpTransfer(executingCommand);
+            session.getDataConn().getDataNetworkHandler().setFtpTransfer(transfer);
         } catch (FtpNoConnectionException e1) {
         }
-        waitForOpenedDataChannel.channel().config().setAutoRead(true);
-        /*
-        final WaarpFuture toFinish = commandFinishing;
-        final WaarpFuture toCommand = endOfCommand;
-         try {
-            session.getDataConn().getCurrentDataChannel().closeFuture()
-                    .addListener(new GenericFutureListener<Future<? super Void>>() {
-                        public void operationComplete(Future<? super Void> future) throws Exception {
-                            if (!toFinish.isDone() || !toCommand.isDone()) {
-                                logger.debug("Schedule to finish command: " + session + ":" + toFinish.isDone() + ":"
-                                        + toCommand.isDone());
-                                scheduleService.schedule(new Runnable() {
-                                    public void run() {
-                                        if (!toFinish.isDone() || !toCommand.isDone()) {
-                                            logger.warn("Will try to finish command: " + session + " CommandFinishing:"
-                                                    + toFinish.isDone() + " EndOfCommand:" + toCommand.isDone());
-                                            setTransferAbortedFromInternal(true);
-                                            //toFinish.cancel();
-                                        }
-                                    }
-                                }, FtpConfiguration.DATATIMEOUTCON * 2, TimeUnit.MILLISECONDS);
-                            }
-                        }
-                    });
-        } catch (FtpNoConnectionException e1) {
-            //e1.printStackTrace();
-        }*/
-        // Run the command
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor();
+        Channel channel = dataChannel.get();
+        if (channel != null) {
+            channel.config().setAutoRead(true);
         }
-        executorService.execute(new FtpTransferExecutor(session,
-                executingCommand));
+        // Run the command
         try {
-            commandFinishing.await();
-            if (commandFinishing.isFailed()) {
-                endOfCommand.cancel();
-            }
-        } catch (InterruptedException e) {
+            getExecutor().execute(new FtpTransferExecutor(session, transfer));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Transfer executor not available", e);
+            setTransferAbortedFromInternal(false);
         }
     }
 
+    /**
+     * 
+     * @return the serial executor of this session, created on first use
+     */
+    private FtpSessionExecutor getExecutor() {
+        FtpSessionExecutor executor = executorService;
+        if (executor == null) {
+            executor = new FtpSessionExecutor(session.getConfiguration()
+                    .getFtpInternalConfiguration().getTransferExecutor());
+            executorService = executor;
+        }
+        return executor;
+    }
+
     /**
      * Add a new transfer to be executed. This is to be called from Command after connection is
      * opened and before answering to the client that command is ready to be executed (for Store or
-     * Retrieve like operations).
+     * Retrieve like operations). The final answer is given once the transfer is over.
      * 
      * @param command
      * @param file
+     * @throws CommandAbstractException
+     *             if the data connection already failed
      */
-    public void setNewFtpTransfer(FtpCommandCode command, FtpFile file) {
-        isExecutingCommandFinished = false;
-        commandFinishing = new WaarpFuture(true);
-        logger.debug("setNewCommand: {}", command);
-        setDataNetworkHandlerReady();
-        executingCommand = new FtpTransfer(command, file);
-        runExecutor();
-        commandFinishing = null;
-        commandSetup.setSuccess();
-        if (!session.getDataConn().isStreamFile()) {
-            waitForOpenedDataChannel.channel().config().setAutoRead(false);
-        }
+    public void setNewFtpTransfer(FtpCommandCode command, FtpFile file)
+            throws CommandAbstractException {
+        startTransfer(new FtpTransfer(command, file));
     }
 
     /**
      * Add a new transfer to be executed. This is to be called from Command after connection is
      * opened and before answering to the client that command is ready to be executed (for List like
-     * operations).
+     * operations). The final answer is given once the transfer is over.
      * 
      * @param command
      * @param list
      * @param path
      *            as Original Path
+     * @throws CommandAbstractException
+     *             if the data connection already failed
      */
     public void setNewFtpTransfer(FtpCommandCode command, List<String> list,
-            String path) {
-        isExecutingCommandFinished = false;
-        commandFinishing = new WaarpFuture(true);
-        logger.debug("setNewCommand: {}", command);
-        setDataNetworkHandlerReady();
-        executingCommand = new FtpTransfer(command, list, path);
-        runExecutor();
-        commandFinishing = null;
-        commandSetup.setSuccess();
-        if (!session.getDataConn().isStreamFile()) {
-            waitForOpenedDataChannel.channel().config().setAutoRead(false);
+            String path) throws CommandAbstractException {
+        startTransfer(new FtpTransfer(command, list, path));
+    }
+
+    /**
+     * Called from {@link NetworkHandler} once the current command returned
+     * 
+     * @return True if this command started a transfer not closed yet, so the final answer will be
+     *         given to {@link NetworkHandler#writeTransferAnswer(String)} once the transfer is
+     *         closed
+     * @throws CommandAbstractException
+     *             if the data connection failed before the command returned
+     */
+    public boolean deferAnswer() throws CommandAbstractException {
+        if (answerBarrier.get() == 0) {
+            return false;
         }
-        try {
-            session.getDataConn().getDataNetworkHandler().setFtpTransfer(null);
-        } catch (FtpNoConnectionException e1) {
+        if (!releaseAnswer()) {
+            return true;
         }
+        checkConnectError();
+        return false;
     }
 
-    public boolean waitFtpTransferExecuting() {
-        boolean notFinished = true;
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB * 100; i++) {
-            if (isExecutingCommandFinished
-                    || commandFinishing == null
-                    || session.isCurrentCommandFinished()
-                    ||
-                    (commandFinishing != null && commandFinishing
-                            .awaitUninterruptibly(FtpInternalConfiguration.RETRYINMS))) {
-                notFinished = false;
-                break;
+    /**
+     * One of the events needed for the final answer occurs
+     * 
+     * @return True if it was the last one
+     */
+    private boolean releaseAnswer() {
+        for (;;) {
+            int current = answerBarrier.get();
+            if (current == 0) {
+                return false;
+            }
+            if (answerBarrier.compareAndSet(current, current - 1)) {
+                return current == 1;
             }
         }
-        return notFinished;
     }
 
     /**
@@ -448,7 +763,8 @@ public class FtpTransferControl {
      * @return True if a command is currently executing
      */
     public boolean isFtpTransferExecuting() {
-        return !isExecutingCommandFinished;
+        TransferState current = state.get();
+        return current == TransferState.RUNNING || current == TransferState.DRAINING;
     }
 
     /**
@@ -457,8 +773,9 @@ public class FtpTransferControl {
      * @throws FtpNoTransferException
      */
     public FtpTransfer getExecutingFtpTransfer() throws FtpNoTransferException {
-        if (executingCommand != null) {
-            return executingCommand;
+        FtpTransfer current = executingCommand;
+        if (current != null) {
+            return current;
         }
         throw new FtpNoTransferException("No Command currently running");
     }
@@ -480,43 +797,26 @@ public class FtpTransferControl {
     }
 
     /**
-     * Called when a transfer is finished from setEndOfTransfer
-     * 
-     * @return True if it was already called before
-     * @throws FtpNoTransferException
+     * Called when a transfer is over (DRAINING), in order to close or abort it according to its
+     * status
      */
-    private boolean checkFtpTransferStatus() throws FtpNoTransferException {
-        if (isCheckAlreadyCalled) {
-            logger.warn("Check: ALREADY CALLED");
-            return true;
-        }
-        if (isExecutingCommandFinished) {
-            // already done
-            logger.warn("Check: already Finished");
-            if (commandFinishing != null) {
-                commandFinishing.cancel();
-            }
-            throw new FtpNoTransferException("No transfer running");
-        }
-        if (!isDataNetworkHandlerReady) {
-            // already done
-            logger.warn("Check: already DNH not ready");
-            throw new FtpNoTransferException("No connection");
+    private void checkFtpTransferStatus() {
+        FtpTransfer executedTransfer = executingCommand;
+        if (executedTransfer == null) {
+            logger.warn("Check: no transfer");
+            abortTransfer(false);
+            return;
         }
-        isCheckAlreadyCalled = true;
-        FtpTransfer executedTransfer = getExecutingFtpTransfer();
         logger.debug("Check: command {}", executedTransfer.getCommand());
-        // DNH is ready and Transfer is running
         if (FtpCommandCode.isListLikeCommand(executedTransfer.getCommand())) {
             if (executedTransfer.getStatus()) {
                 // Special status for List Like command
                 logger.debug("Check: List OK");
                 closeTransfer();
-                return false;
+                return;
             }
             logger.debug("Check: List Ko");
-            abortTransfer();
-            return false;
+            abortTransfer(false);
         } else if (FtpCommandCode.isRetrLikeCommand(executedTransfer
                 .getCommand())) {
             FtpFile file = null;
@@ -524,14 +824,14 @@ public class FtpTransferControl {
                 file = executedTransfer.getFtpFile();
             } catch (FtpNoFileException e) {
                 logger.debug("Check: Retr no FtpFile for Retr");
-                abortTransfer();
-                return false;
+                abortTransfer(false);
+                return;
             }
             try {
                 if (file.isInReading()) {
                     logger
                             .debug("Check: Retr FtpFile still in reading KO");
-                    abortTransfer();
+                    abortTransfer(false);
                 } else {
                     logger
                             .debug("Check: Retr FtpFile no more in reading OK");
@@ -541,85 +841,106 @@ public class FtpTransferControl {
                 logger.warn("Retr Test is in Reading problem", e);
                 closeTransfer();
             }
-            return false;
         } else if (FtpCommandCode.isStoreLikeCommand(executedTransfer
                 .getCommand())) {
             // logger.debug("Check: Store OK");
             closeTransfer();
-            return false;
         } else {
             logger.warn("Check: Unknown command");
-            abortTransfer();
+            abortTransfer(false);
         }
-        return false;
     }
 
     /**
-     * Abort the current transfer
+     * Abort the current transfer: the 426 answer and the Business call are run from the control
+     * executor
+     * 
+     * @param write
+     *            True if the answer is to be written even if it is not the final answer of the
+     *            transfer command
      */
-    private void abortTransfer() {
-        logger.debug("Will abort transfer and write: ", new Exception("trace only"));
+    private void abortTransfer(final boolean write) {
+        logger.debug("Will abort transfer");
         FtpFile file = null;
-        FtpTransfer current = null;
-        try {
-            current = getExecutingFtpTransfer();
-            file = current.getFtpFile();
-            file.abortFile();
-        } catch (FtpNoTransferException e) {
-            logger.warn("Abort problem", e);
-        } catch (FtpNoFileException e) {
-        } catch (CommandAbstractException e) {
-            logger.warn("Abort problem", e);
-        }
+        final FtpTransfer current = executingCommand;
         if (current != null) {
+            try {
+                file = current.getFtpFile();
+                file.abortFile();
+            } catch (FtpNoFileException e) {
+            } catch (CommandAbstractException e) {
+                logger.warn("Abort problem", e);
+            }
             current.setStatus(false);
         }
         endDataConnection();
-        session.setReplyCode(
-                ReplyCode.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED,
-                "Transfer aborted for " +
-                        (current == null ? "Unknown command" : current
-                                .toString()));
-        if (current != null) {
-            if (!FtpCommandCode.isListLikeCommand(current.getCommand())) {
-                try {
-                    session.getBusinessHandler().afterTransferDoneBeforeAnswer(current);
-                } catch (CommandAbstractException e) {
-                    session.setReplyCode(e);
+        executeControlTask(new Runnable() {
+            public void run() {
+                session.setReplyCode(
+                        ReplyCode.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED,
+                        "Transfer aborted for " +
+                                (current == null ? "Unknown command" : current
+                                        .toString()));
+                afterTransferDone(current);
+                if (!finalizeExecution(session.getAnswer()) && write) {
+                    session.getNetworkHandler().writeIntermediateAnswer();
                 }
             }
-        }
-        finalizeExecution();
+        });
     }
 
     /**
-     * Finish correctly a transfer
+     * Finish correctly a transfer: the 226 answer and the Business call are run from the control
+     * executor. In Stream mode, the transfer is closed once the data connection is closed.
      * 
      */
     private void closeTransfer() {
         logger.debug("Will close transfer");
         FtpFile file = null;
-        FtpTransfer current = null;
-        try {
-            current = getExecutingFtpTransfer();
-            file = current.getFtpFile();
-            file.closeFile();
-        } catch (FtpNoTransferException e) {
-            logger.warn("Close problem", e);
-        } catch (FtpNoFileException e) {
-        } catch (CommandAbstractException e) {
-            logger.warn("Close problem", e);
-        }
+        final FtpTransfer current = executingCommand;
         if (current != null) {
+            try {
+                file = current.getFtpFile();
+                file.closeFile();
+            } catch (FtpNoFileException e) {
+            } catch (CommandAbstractException e) {
+                logger.warn("Close problem", e);
+            }
             current.setStatus(true);
         }
-        if (session.getDataConn().isStreamFile()) {
-            endDataConnection();
-        }
-        session.setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
-                "Transfer complete for " +
-                        (current == null ? "Unknown command" : current
-                                .toString()));
+        executeControlTask(new Runnable() {
+            public void run() {
+                session.setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
+                        "Transfer complete for " +
+                                (current == null ? "Unknown command" : current
+                                        .toString()));
+                afterTransferDone(current);
+                final String answer = session.getAnswer();
+                ChannelFuture future = null;
+                if (session.getDataConn().isStreamFile()) {
+                    future = endDataConnection();
+                }
+                if (future == null) {
+                    finalizeExecution(answer);
+                    return;
+                }
+                // The next transfer could only start once this data connection is really closed
+                future.addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        finalizeExecution(answer);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Call the Business once the transfer is done, before its answer (from the control executor)
+     * 
+     * @param current
+     *            the transfer if any
+     */
+    private void afterTransferDone(FtpTransfer current) {
         if (current != null) {
             if (!FtpCommandCode.isListLikeCommand(current.getCommand())) {
                 try {
@@ -627,15 +948,30 @@ public class FtpTransferControl {
                 } catch (CommandAbstractException e) {
                     session.setReplyCode(e);
                 }
-            } else {
-                // Special wait to prevent fast LIST following by STOR or RETR command
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e) {
-                }
             }
         }
-        finalizeExecution();
+    }
+
+    /**
+     * Transfer over (RUNNING to DRAINING): close or abort it from the executor
+     * 
+     * @return True if this call started the draining
+     */
+    private boolean drain() {
+        if (!state.compareAndSet(TransferState.RUNNING, TransferState.DRAINING)) {
+            return false;
+        }
+        Runnable check = new Runnable() {
+            public void run() {
+                checkFtpTransferStatus();
+            }
+        };
+        try {
+            getExecutor().execute(check);
+        } catch (RejectedExecutionException e) {
+            check.run();
+        }
+        return true;
     }
 
     /**
@@ -644,10 +980,8 @@ public class FtpTransferControl {
      * 
      */
     public void setEndOfTransfer() {
-        try {
-            checkFtpTransferStatus();
-        } catch (FtpNoTransferException e) {
-            return;
+        if (!drain()) {
+            logger.debug("End of transfer while {}", state.get());
         }
     }
 
@@ -656,99 +990,158 @@ public class FtpTransferControl {
      * 
      * @param write
      *            True means the message is write back to the control command, false it is only
-     *            prepared
+     *            prepared. When a transfer is running, the message is the final answer of the
+     *            transfer command so it is always written once the transfer is aborted.
      */
     public void setTransferAbortedFromInternal(boolean write) {
         logger.debug("Set transfer aborted internal {}", write);
-        abortTransfer();
-        if (write) {
-            session.getNetworkHandler().writeIntermediateAnswer();
-        }
-        if (endOfCommand != null) {
-            endOfCommand.cancel();
+        for (;;) {
+            TransferState current = state.get();
+            switch (current) {
+                case CONNECTING:
+                    if (dataConnectionFailed(connectingChannel.get(), null)) {
+                        return;
+                    }
+                    break;
+                case RUNNING:
+                    if (state.compareAndSet(current, TransferState.DRAINING)) {
+                        abortTransfer(false);
+                        return;
+                    }
+                    break;
+                case DATA_OPEN:
+                    if (state.compareAndSet(current, TransferState.DRAINING)) {
+                        // No transfer yet, only the data connection
+                        abortTransfer(write);
+                        return;
+                    }
+                    break;
+                default:
+                    logger.debug("Abort ignored while {}", current);
+                    return;
+            }
         }
     }
 
     /**
-     * Called by channelClosed (from {@link DataNetworkHandler} ) or trueRetrieve
-     * (from {@link FtpFile}) when the transfer is over
+     * Abort the current transfer if the closed or failing data channel is the one of this
+     * transfer (from {@link DataNetworkHandler}), an older data channel being ignored
+     * 
+     * @param channel
      */
-    public void setPreEndOfTransfer() {
-        if (endOfCommand != null) {
-            endOfCommand.setSuccess();
-            logger.debug("Transfer completed");
+    public void setTransferAbortedFromChannel(Channel channel) {
+        if (channel != null && channel == dataChannel.get()) {
+            setTransferAbortedFromInternal(true);
+        } else if (channel != null && channel == connectingChannel.get()) {
+            // closed before being ready (SSL handshake failure)
+            dataConnectionFailed(channel, new Reply425Exception(
+                    "Cannot open active data connection"));
+        } else {
+            logger.debug("Abort from a previous data channel ignored");
         }
     }
 
     /**
-     * Wait for the current transfer to finish, called from {@link FtpTransferExecutor}
-     * 
-     * @throws InterruptedException
+     * Called by channelClosed (from {@link DataNetworkHandler}) or by the retrieve engine when
+     * the transfer is over
      */
-    public void waitForEndOfTransfer() throws InterruptedException {
-        if (endOfCommand != null) {
-            endOfCommand.await();
-            if (endOfCommand.isFailed()) {
-                throw new InterruptedException("Transfer aborted");
-            }
+    public void setPreEndOfTransfer() {
+        if (drain()) {
+            logger.debug("Transfer completed");
         }
-        // logger.debug("waitEndOfCommand over");
     }
 
     // XXX ExecutorHandler functions
     /**
-     * Finalize execution
+     * Finalize execution (DRAINING to CLOSED) and give the final answer if the command already
+     * returned
      * 
+     * @param answer
+     *            the final answer of the transfer command
+     * @return True if the final answer was given
      */
-    private void finalizeExecution() {
+    private boolean finalizeExecution(String answer) {
         // logger.debug("Finalize execution");
-        if (commandFinishing != null) {
-            commandFinishing.setSuccess();
+        try {
+            session.getDataConn().getDataNetworkHandler().setFtpTransfer(null);
+        } catch (FtpNoConnectionException e1) {
+        }
+        Channel channel = dataChannel.get();
+        if (channel != null && !session.getDataConn().isStreamFile()) {
+            channel.config().setAutoRead(false);
         }
-        isExecutingCommandFinished = true;
         executingCommand = null;
         resetWaitForOpenedDataChannel();
+        if (!state.compareAndSet(TransferState.DRAINING, TransferState.CLOSED)) {
+            // cleared in between, without any answer
+            logger.debug("Finalize ignored while {}", state.get());
+            return false;
+        }
+        if (releaseAnswer()) {
+            session.getNetworkHandler().writeTransferAnswer(answer);
+            return true;
+        }
+        return false;
     }
 
     // XXX Finalize of Transfer
     /**
      * End the data connection if any
+     * 
+     * @return the future of the closing, or null if no data connection
      */
-    private synchronized void endDataConnection() {
+    private ChannelFuture endDataConnection() {
         logger.debug("End Data connection");
-        if (isDataNetworkHandlerReady && dataChannel != null) {
-            try {
-                WaarpSslUtility.closingSslChannel(dataChannel).await(FtpConfiguration.getDATATIMEOUTCON(),
-                        TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-            }
-            isDataNetworkHandlerReady = false;
-            // logger.debug("waitForClosedDataChannel over");
-            dataChannel = null;
+        Channel channel = dataChannel.getAndSet(null);
+        if (channel == null) {
+            return null;
         }
+        return WaarpSslUtility.closingSslChannel(channel);
     }
 
     /**
      * Clear the FtpTransferControl (called when the data connection must be over like from clear of {@link FtpDataAsyncConn},
-     * abort from {@link ABOR} or ending control connection from {@link NetworkHandler}.
+     * abort from {@link ABOR} or ending control connection from {@link NetworkHandler}. A running
+     * transfer is aborted without any answer.
      * 
      */
     public void clear() {
         // logger.debug("Clear Ftp Transfer Control");
-        endDataConnection();
-        finalizeExecution();
-        if (endOfCommand != null) {
-            endOfCommand.cancel();
+        if (answerBarrier.getAndSet(0) == 1) {
+            // the command already returned: no answer but the next commands could run
+            session.getNetworkHandler().writeTransferAnswer(null);
         }
-        if (waitForOpenedDataChannel != null) {
-            waitForOpenedDataChannel.cancel();
+        TransferState previous = state.get();
+        while (!state.compareAndSet(previous, TransferState.CLOSED)) {
+            previous = state.get();
         }
-        if (commandSetup != null) {
-            commandSetup.cancel();
+        connectError.set(null);
+        if (previous == TransferState.CONNECTING) {
+            endActiveConnection();
+            FtpTransfer transfer = pendingTransfer.getAndSet(null);
+            if (transfer != null) {
+                abortPendingTransfer(transfer);
+            }
         }
-        if (executorService != null) {
-            executorService.shutdownNow();
-            executorService = null;
+        if (previous == TransferState.RUNNING) {
+            FtpTransfer current = executingCommand;
+            if (current != null) {
+                try {
+                    current.getFtpFile().abortFile();
+                } catch (FtpNoFileException e) {
+                } catch (CommandAbstractException e) {
+                    logger.warn("Abort problem", e);
+                }
+                current.setStatus(false);
+            }
+        }
+        endDataConnection();
+        executingCommand = null;
+        openedDataChannel.set(null);
+        FtpSessionExecutor executor = executorService;
+        if (executor != null) {
+            // the shared executor is never shut down from a session
+            executor.clear();
         }
     }
 }
@@ -19,6 +19,9 @@ package org.waarp.ftp.core.data;
 
 import java.util.List;
 
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
@@ -76,29 +79,18 @@ class FtpTransferExecutor implements Runnable {
             logger.error("No Execution to do");
             return;
         }
-        try {
-            runNextCommand();
-        } catch (InterruptedException e) {
-            logger.error("Executor Interrupted {}", e.getMessage());
-        }
+        runNextCommand();
     }
 
     /**
-     * Run the next command or wait for the next
-     * 
-     * @throws InterruptedException
+     * Run the next command: the end of transfer is then set by the data connection, so without
+     * waiting for it
      */
-    private void runNextCommand() throws InterruptedException {
+    private void runNextCommand() {
         if (FtpCommandCode.isStoreLikeCommand(executeTransfer.getCommand())) {
-            // The command is implicitly done by receiving message
-            waitForCommand();
-            // Store set end
-            try {
-                session.getDataConn().getFtpTransferControl()
-                        .setEndOfTransfer();
-            } catch (NullPointerException e) {
-                // ignore, due probably to an already clean session
-            }
+            // The command is implicitly done by receiving message, and the end is set once the
+            // data connection is closed
+            return;
         } else if (FtpCommandCode.isListLikeCommand(executeTransfer
                 .getCommand())) {
             // No wait for Command since the answer is already there
@@ -111,16 +103,24 @@ class FtpTransferExecutor implements Runnable {
                 builder.append(ReplyCode.CRLF);
             }
             String message = builder.toString();
-            boolean status = false;
+            ChannelFuture future = null;
             try {
-                status = session.getDataConn().getDataNetworkHandler().writeMessage(message);
+                future = session.getDataConn().getDataNetworkHandler().sendMessage(message);
             } catch (FtpNoConnectionException e) {
                 logger.error("No Connection but should not be!", e);
+                executeTransfer.setStatus(false);
+                session.getDataConn().getFtpTransferControl().setEndOfTransfer();
+                return;
             }
-            // Set status for check, no wait for the command
-            executeTransfer.setStatus(status);
-            // must explicitly set the end and no wait
-            session.getDataConn().getFtpTransferControl().setEndOfTransfer();
+            // Set status for check once written, without blocking the transfer executor
+            future.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    logger.debug("Write result: " + future.isSuccess(), future.cause());
+                    executeTransfer.setStatus(future.isSuccess());
+                    // must explicitly set the end
+                    session.getDataConn().getFtpTransferControl().setEndOfTransfer();
+                }
+            });
         } else if (FtpCommandCode.isRetrLikeCommand(executeTransfer
                 .getCommand())) {
             // The command must be launched
@@ -132,29 +132,10 @@ class FtpTransferExecutor implements Runnable {
                 session.getDataConn().getFtpTransferControl()
                         .setEndOfTransfer();
             }
-            logger.debug("wait for end of command");
-            waitForCommand();
-            logger.debug("RETR ending");
-            // RETR set end
-            try {
-                session.getDataConn().getFtpTransferControl()
-                        .setEndOfTransfer();
-            } catch (NullPointerException e) {
-                // ignore, due probably to an already clean session
-            }
+            // RETR end is set by the retrieve itself
         } else {
             // This is an error as unknown transfer command
             session.getDataConn().getFtpTransferControl().setEndOfTransfer();
         }
     }
-
-    /**
-     * Wait for the command to finish
-     * 
-     * @throws InterruptedException
-     * 
-     */
-    private void waitForCommand() throws InterruptedException {
-        session.getDataConn().getFtpTransferControl().waitForEndOfTransfer();
-    }
 }
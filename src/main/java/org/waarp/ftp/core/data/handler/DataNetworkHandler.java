@@ -25,12 +25,14 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NotYetConnectedException;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
@@ -41,14 +43,18 @@ import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.WaarpStringUtils;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.config.FtpInternalConfiguration;
+import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.control.NetworkHandler;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.data.FtpRetrieveEngine;
+import org.waarp.ftp.core.data.FtpStoreWriter;
 import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.data.FtpTransferControl;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpNoFileException;
 import org.waarp.ftp.core.exception.FtpNoTransferException;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.session.FtpSessionReference.ParkedConnection;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
 /**
@@ -98,7 +104,17 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      * The associated FtpTransfer
      */
     private volatile FtpTransfer ftpTransfer = null;
-    
+
+    /**
+     * The current pipelined Retrieve engine if any
+     */
+    private volatile FtpRetrieveEngine retrieveEngine = null;
+
+    /**
+     * The current asynchronous Store writer if any
+     */
+    private volatile FtpStoreWriter storeWriter = null;
+
     /**
      * Constructor from DataBusinessHandler
      * 
@@ -151,11 +167,28 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         logger.debug("Data Channel closed with a session ? "+(session !=null));
         if (session != null) {
+            FtpRetrieveEngine engine = retrieveEngine;
+            if (engine != null) {
+                // the client closed the data connection during a Retrieve
+                engine.abort();
+            }
+            FtpStoreWriter writer = storeWriter;
             if (session.getDataConn().checkCorrectChannel(ctx.channel())) {
-                session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+                if (writer != null) {
+                    // end of transfer will be set once all blocks are written
+                    writer.end();
+                } else {
+                    session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+                }
             } else {
-                session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
+                if (writer != null) {
+                    writer.discard();
+                }
+                // ignored if this is the data channel of a previous transfer
+                session.getDataConn().getFtpTransferControl()
+                        .setTransferAbortedFromChannel(ctx.channel());
             }
+            storeWriter = null;
             session.getDataConn().unbindPassive();
             try {
                 getDataBusinessHandler().executeChannelClosed();
@@ -170,29 +203,37 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         super.channelInactive(ctx);
     }
 
-    protected void setSession(Channel channel) {
-        // First get the ftpSession from inetaddresses
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB; i++) {
-            session = configuration.getFtpSession(channel, isActive);
-            if (session == null) {
-                logger.warn("Session not found at try " + i);
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e1) {
-                    break;
-                }
-            } else {
-                break;
+    /**
+     * Get the ftpSession from inetaddresses, or park this channel until the session is
+     * registered: channelActive is then run again from the executor of this handler
+     * 
+     * @param ctx
+     * @return True if the session is found, False if the channel is parked
+     */
+    protected boolean setSession(final ChannelHandlerContext ctx) {
+        session = configuration.getFtpSession(ctx.channel(), isActive, new ParkedConnection() {
+            public void sessionFound(final FtpSession found) {
+                ctx.executor().execute(new Runnable() {
+                    public void run() {
+                        if (found == null || !ctx.channel().isActive()) {
+                            // Not found !!!
+                            logger.error("Session not found!");
+                            WaarpSslUtility.closingSslChannel(ctx.channel());
+                            // Problem: control connection could not be directly informed!!!
+                            // Only timeout will occur
+                            return;
+                        }
+                        session = found;
+                        try {
+                            channelActive(ctx);
+                        } catch (Exception e) {
+                            ctx.fireExceptionCaught(e);
+                        }
+                    }
+                });
             }
-        }
-        if (session == null) {
-            // Not found !!!
-            logger.error("Session not found!");
-            WaarpSslUtility.closingSslChannel(channel);
-            // Problem: control connection could not be directly informed!!!
-            // Only timeout will occur
-            return;
-        }
+        });
+        return session != null;
     }
 
     /**
@@ -203,15 +244,11 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         Channel channel = ctx.channel();
         channel.config().setAutoRead(false);
-        if (session == null) {
-            setSession(channel);
-        }
-        logger.debug("Data Channel opened as "+channel);
-        if (session == null) {
-            logger.debug("DataChannel immediately closed since no session is assigned");
-            WaarpSslUtility.closingSslChannel(ctx.channel());
+        if (session == null && !setSession(ctx)) {
+            logger.debug("DataChannel waiting for its session");
             return;
         }
+        logger.debug("Data Channel opened as "+channel);
         channelPipeline = ctx.pipeline();
         dataChannel = channel;
         dataBusinessHandler.setFtpSession(getFtpSession());
@@ -247,23 +284,85 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     }
 
     /**
-     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE
+     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE.<br>
+     * For STREAM mode, FILE structure and IMAGE type, the Mode, Type and Structure codecs are
+     * replaced by a single pass-through codec. The pipeline is changed from the channel event loop.
      */
     public void setCorrectCodec() {
-        FtpDataModeCodec modeCodec = (FtpDataModeCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_MODE);
-        FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_TYPE);
-        FtpDataStructureCodec structureCodec = (FtpDataStructureCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_STRUCTURE);
-        if (modeCodec == null || typeCodec == null || structureCodec == null) {
+        final ChannelPipeline pipeline = channelPipeline;
+        if (pipeline == null) {
+            return;
+        }
+        EventLoop eventLoop = pipeline.channel().eventLoop();
+        if (eventLoop.inEventLoop()) {
+            setCorrectCodec(pipeline);
+        } else {
+            eventLoop.execute(new Runnable() {
+                public void run() {
+                    setCorrectCodec(pipeline);
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the CODEC according to the mode (from the channel event loop)
+     * 
+     * @param pipeline
+     */
+    private void setCorrectCodec(ChannelPipeline pipeline) {
+        ChannelHandler modeHandler = pipeline.get(FtpDataInitializer.CODEC_MODE);
+        if (modeHandler == null || pipeline.get(FtpDataInitializer.HANDLER) == null ||
+                session == null) {
+            // already closed
             return;
         }
-        modeCodec.setMode(session.getDataConn().getMode());
-        modeCodec.setStructure(session.getDataConn().getStructure());
-        typeCodec.setFullType(session.getDataConn().getType(), session
-                .getDataConn().getSubType());
-        structureCodec.setStructure(session.getDataConn().getStructure());
+        FtpDataAsyncConn dataConn = session.getDataConn();
+        if (dataConn.isStreamFileImage()) {
+            if (!(modeHandler instanceof FtpDataStreamCodec)) {
+                // Type and Structure first: bytes still buffered by the removed Mode codec are
+                // forwarded to the next handlers and must not go through the old Type codec
+                pipeline.remove(FtpDataInitializer.CODEC_TYPE);
+                pipeline.remove(FtpDataInitializer.CODEC_STRUCTURE);
+                pipeline.replace(FtpDataInitializer.CODEC_MODE, FtpDataInitializer.CODEC_MODE,
+                        FtpDataInitializer.ftpDataStreamCodec);
+            }
+            logger.debug("pass-through codec setup");
+            return;
+        }
+        // Type and Structure codecs are shared and immutable, one per setting
+        FtpDataTypeCodec typeCodec = FtpDataTypeCodec.getCodec(dataConn.getType(),
+                dataConn.getSubType());
+        FtpDataStructureCodec structureCodec = FtpDataStructureCodec.getCodec(dataConn
+                .getStructure());
+        FtpDataModeCodec modeCodec = null;
+        if (modeHandler instanceof FtpDataModeCodec) {
+            modeCodec = (FtpDataModeCodec) modeHandler;
+            if (pipeline.get(FtpDataInitializer.CODEC_TYPE) != typeCodec) {
+                pipeline.replace(FtpDataInitializer.CODEC_TYPE, FtpDataInitializer.CODEC_TYPE,
+                        typeCodec);
+            }
+            if (pipeline.get(FtpDataInitializer.CODEC_STRUCTURE) != structureCodec) {
+                pipeline.replace(FtpDataInitializer.CODEC_STRUCTURE,
+                        FtpDataInitializer.CODEC_STRUCTURE, structureCodec);
+            }
+            modeCodec.setMode(dataConn.getMode());
+            modeCodec.setStructure(dataConn.getStructure());
+        } else {
+            // restore the full codecs
+            modeCodec = new FtpDataModeCodec(dataConn.getMode(), dataConn.getStructure());
+            pipeline.addBefore(FtpDataInitializer.HANDLER, FtpDataInitializer.CODEC_TYPE,
+                    typeCodec);
+            pipeline.addBefore(FtpDataInitializer.HANDLER, FtpDataInitializer.CODEC_STRUCTURE,
+                    structureCodec);
+            // Mode last, once the new Type and Structure codecs are in place
+            pipeline.replace(FtpDataInitializer.CODEC_MODE, FtpDataInitializer.CODEC_MODE,
+                    modeCodec);
+            // the pass-through codec was not waiting for the handler
+            modeCodec.setCodecReady();
+        }
+        modeCodec.setLevel(dataConn.getModeZLevel());
+        modeCodec.setType(dataConn.getType());
         logger.debug("codec setup");
     }
 
@@ -272,9 +371,14 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      * 
      */
     public void unlockModeCodec() {
-        FtpDataModeCodec modeCodec = (FtpDataModeCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_MODE);
-        modeCodec.setCodecReady();
+        final ChannelPipeline pipeline = channelPipeline;
+        if (pipeline == null) {
+            return;
+        }
+        ChannelHandler modeHandler = pipeline.get(FtpDataInitializer.CODEC_MODE);
+        if (modeHandler instanceof FtpDataModeCodec) {
+            ((FtpDataModeCodec) modeHandler).setCodecReady();
+        }
     }
 
     /**
@@ -349,6 +453,62 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
 
     public void setFtpTransfer(FtpTransfer ftpTransfer) {
         this.ftpTransfer = ftpTransfer;
+        FtpStoreWriter writer = storeWriter;
+        if (writer != null && ftpTransfer == null) {
+            writer.discard();
+            storeWriter = null;
+        }
+        if (ftpTransfer != null) {
+            setStoreWriter(ftpTransfer, true);
+        }
+    }
+
+    /**
+     * Set the asynchronous Store writer if the transfer is a Store like one and if the store
+     * queue is enabled, unless the Store is done in zero copy
+     * 
+     * @param ftpTransfer
+     * @param zeroCopy
+     *            True if zero copy could be tried (no block received yet)
+     */
+    private void setStoreWriter(FtpTransfer ftpTransfer, boolean zeroCopy) {
+        storeWriter = null;
+        if (session == null || dataChannel == null ||
+                !FtpCommandCode.isStoreLikeCommand(ftpTransfer.getCommand())) {
+            return;
+        }
+        try {
+            if (zeroCopy && ftpTransfer.getFtpFile().trueStoreZeroCopy()) {
+                // no block will be received
+                return;
+            }
+        } catch (FtpNoFileException e) {
+            return;
+        }
+        if (configuration.getSTOREQUEUE() > 0) {
+            storeWriter = new FtpStoreWriter(session, ftpTransfer, dataChannel);
+        }
+    }
+
+    /**
+     * @param retrieveEngine
+     *            the current pipelined Retrieve engine (null when over)
+     */
+    public void setRetrieveEngine(FtpRetrieveEngine retrieveEngine) {
+        this.retrieveEngine = retrieveEngine;
+    }
+
+    /**
+     * Resume the current Retrieve engine if any when the channel is writable again
+     * 
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        FtpRetrieveEngine engine = retrieveEngine;
+        if (engine != null && ctx.channel().isWritable()) {
+            engine.resume();
+        }
+        super.channelWritabilityChanged(ctx);
     }
     /**
      * Act as needed according to the receive DataBlock message
@@ -368,8 +528,16 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
                 logger.debug("No ExecutionFtpTransfer found");
                 session.getDataConn().getFtpTransferControl()
                     .setTransferAbortedFromInternal(true);
+                FtpDataBlock.release(dataBlock);
                 return;
             }
+            setStoreWriter(ftpTransfer, false);
+        }
+        FtpStoreWriter writer = storeWriter;
+        if (writer != null && isStillAlive()) {
+            // written and released by the disk writer
+            writer.offer(dataBlock);
+            return;
         }
         try {
             if (isStillAlive()) {
@@ -392,25 +560,35 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
                 WaarpSslUtility.closingSslChannel(ctx.channel());
             }
         } finally {
-            dataBlock.getBlock().release();
+            FtpDataBlock.release(dataBlock);
         }
     }
 
     /**
-     * Write a simple message (like LIST) and wait for it
+     * Send a simple message (like LIST) without waiting for it
      * 
      * @param message
-     * @return True if the message is correctly written
+     * @return the future of the write
      */
-    public boolean writeMessage(String message) {
-        DataBlock dataBlock = new DataBlock();
+    public ChannelFuture sendMessage(String message) {
+        DataBlock dataBlock = FtpDataBlock.newInstance();
         dataBlock.setEOF(true);
-        ByteBuf buffer = Unpooled.wrappedBuffer(message.getBytes(WaarpStringUtils.UTF8));
+        ByteBuf buffer = dataChannel.alloc().buffer(message.length());
+        ByteBufUtil.writeUtf8(buffer, message);
         dataBlock.setBlock(buffer);
-        ChannelFuture future;
         logger.debug("Will write: " + buffer.toString(WaarpStringUtils.UTF8));
+        return dataChannel.writeAndFlush(dataBlock);
+    }
+
+    /**
+     * Write a simple message (like LIST) and wait for it
+     * 
+     * @param message
+     * @return True if the message is correctly written
+     */
+    public boolean writeMessage(String message) {
+        ChannelFuture future = sendMessage(message);
         try {
-            future = dataChannel.writeAndFlush(dataBlock);
             future.await(FtpConfiguration.getDATATIMEOUTCON());
         } catch (InterruptedException e) {
             logger.debug("Interrupted", e);
@@ -0,0 +1,81 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import io.netty.util.Recycler;
+import io.netty.util.ReferenceCountUtil;
+
+import org.waarp.common.file.DataBlock;
+
+/**
+ * DataBlock recycled once its buffer is consumed, in order to limit the garbage created per
+ * block on the data path.<br>
+ * Only the owner of the block (the final consumer) should call {@link #release(DataBlock)} or
+ * {@link #recycle(DataBlock)}, and must not use the block afterwards. DataBlocks not created
+ * through {@link #newInstance()} are simply left to the garbage collector.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public final class FtpDataBlock extends DataBlock {
+    private static final Recycler<FtpDataBlock> RECYCLER = new Recycler<FtpDataBlock>() {
+        @Override
+        protected FtpDataBlock newObject(Handle<FtpDataBlock> handle) {
+            return new FtpDataBlock(handle);
+        }
+    };
+
+    private final Recycler.Handle<FtpDataBlock> handle;
+
+    private FtpDataBlock(Recycler.Handle<FtpDataBlock> handle) {
+        super();
+        this.handle = handle;
+    }
+
+    /**
+     * 
+     * @return a new or recycled empty DataBlock
+     */
+    public static DataBlock newInstance() {
+        return RECYCLER.get();
+    }
+
+    /**
+     * Recycle the DataBlock if possible, without releasing its buffer
+     * 
+     * @param dataBlock
+     */
+    public static void recycle(DataBlock dataBlock) {
+        if (dataBlock instanceof FtpDataBlock) {
+            FtpDataBlock block = (FtpDataBlock) dataBlock;
+            block.clear();
+            block.setDescriptor((byte) 0);
+            block.handle.recycle(block);
+        }
+    }
+
+    /**
+     * Release the buffer of the DataBlock if any, then recycle the DataBlock if possible
+     * 
+     * @param dataBlock
+     */
+    public static void release(DataBlock dataBlock) {
+        ReferenceCountUtil.release(dataBlock.getBlock());
+        recycle(dataBlock);
+    }
+}
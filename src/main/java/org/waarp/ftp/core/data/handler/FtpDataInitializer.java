@@ -65,11 +65,13 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
      */
     public static final String HANDLER = "handler";
 
-    protected static final FtpDataTypeCodec ftpDataTypeCodec = new FtpDataTypeCodec(
+    protected static final FtpDataTypeCodec ftpDataTypeCodec = FtpDataTypeCodec.getCodec(
             TransferType.ASCII, TransferSubType.NONPRINT);
 
-    protected static final FtpDataStructureCodec ftpDataStructureCodec = new FtpDataStructureCodec(
-            TransferStructure.FILE);
+    protected static final FtpDataStructureCodec ftpDataStructureCodec = FtpDataStructureCodec
+            .getCodec(TransferStructure.FILE);
+
+    protected static final FtpDataStreamCodec ftpDataStreamCodec = new FtpDataStreamCodec();
 
     /**
      * Business Handler Class
@@ -17,27 +17,38 @@
  */
 package org.waarp.ftp.core.data.handler;
 
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.util.ReferenceCountUtil;
 
 import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
-import org.waarp.common.future.WaarpFuture;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
-import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.data.handler.FtpSeekAheadData.SeekAheadNoBackArrayException;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 
 /**
  * First CODEC :<br>
  * - encode : takes a {@link DataBlock} and transforms it to a ByteBuf<br>
  * - decode : takes a ByteBuf and transforms it to a {@link DataBlock}<br>
- * STREAM and BLOCK mode are implemented. COMPRESSED mode is not implemented.
+ * STREAM, BLOCK, COMPRESSED (RFC 959) and ZLIB (MODE Z, a deflate stream of the STREAM mode
+ * data) modes are implemented.<br>
+ * Until the DataNetworkHandler is ready, received bytes are kept in the cumulation buffer and
+ * written blocks are queued, so that the I/O thread is never blocked.
  * 
  * @author Frederic Bregier
  * 
@@ -104,15 +115,64 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
     private int lastbyte = 0;
 
     /**
-     * Is the underlying DataNetworkHandler ready to receive block
+     * Escape byte for STREAM+RECORD
+     */
+    private static final byte ESCAPE = (byte) 0xFF;
+
+    /**
+     * Filler byte for COMPRESSED mode (space for ASCII and EBCDIC, 0 for other types)
+     */
+    private byte filler = 0x20;
+
+    /**
+     * Compression level for ZLIB mode
+     */
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Inflater for ZLIB mode (created on first use, only used from the channel event loop)
+     */
+    private Inflater inflater = null;
+
+    /**
+     * Deflater for ZLIB mode (created on first use, only used from the channel event loop)
+     */
+    private Deflater deflater = null;
+
+    /**
+     * Heap copy of direct buffers for the Inflater, Deflater or COMPRESSED encoder (reused)
+     */
+    private byte[] heapInput = null;
+
+    /**
+     * Is the underlying DataNetworkHandler ready to receive block (only changed from the channel
+     * event loop)
      */
     private volatile boolean isReady = false;
 
     /**
-     * Blocking step between DataNetworkHandler and this Codec in order to wait that the
-     * DataNetworkHandler is ready
+     * Context of this Codec
      */
-    private final WaarpFuture codecLocked = new WaarpFuture();
+    private volatile ChannelHandlerContext context = null;
+
+    /**
+     * Blocks written before the DataNetworkHandler is ready (only used from the channel event
+     * loop)
+     */
+    private final LinkedList<PendingWrite> pendingWrites = new LinkedList<PendingWrite>();
+
+    /**
+     * Block written before the Codec is ready
+     */
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
 
     /**
      * @param mode
@@ -126,142 +186,227 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
 
     /**
      * Inform the Codec that DataNetworkHandler is ready (called from DataNetworkHandler after
-     * setCorrectCodec).
+     * setCorrectCodec). Queued blocks are then written and already received bytes are decoded,
+     * from the channel event loop.
      * 
      */
     public void setCodecReady() {
-        codecLocked.setSuccess();
+        final ChannelHandlerContext ctx = context;
+        if (ctx == null) {
+            isReady = true;
+            return;
+        }
+        if (ctx.executor().inEventLoop()) {
+            unlock(ctx);
+        } else {
+            ctx.executor().execute(new Runnable() {
+                public void run() {
+                    unlock(ctx);
+                }
+            });
+        }
     }
 
-    protected DataBlock decodeRecordStandard(ByteBuf buf, int length) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
-        if (lastbyte == 0xFF) {
-            int nextbyte = buf.readByte();
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
-            } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
-                }
-                lastbyte = 0;
+    /**
+     * Unlock the Codec from the channel event loop
+     * 
+     * @param ctx
+     */
+    private void unlock(ChannelHandlerContext ctx) {
+        if (isReady) {
+            return;
+        }
+        isReady = true;
+        if (ctx.isRemoved()) {
+            failPendingWrites();
+            return;
+        }
+        if (!pendingWrites.isEmpty()) {
+            PendingWrite pendingWrite = null;
+            while ((pendingWrite = pendingWrites.poll()) != null) {
+                ctx.write(pendingWrite.msg, pendingWrite.promise);
             }
+            ctx.flush();
         }
+        // Decode bytes received before the Codec was ready
         try {
-            while (true) {
-                lastbyte = buf.readByte();
-                if (lastbyte == 0xFF) {
-                    int nextbyte = buf.readByte();
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
-                        }
-                    }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
-                }
-                lastbyte = 0;
-            }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
+            channelRead(ctx, Unpooled.EMPTY_BUFFER);
+        } catch (Exception e) {
+            ctx.fireExceptionCaught(e);
         }
-        dataBlock.setBlock(newbuf);
-        return dataBlock;
     }
 
-    protected DataBlock decodeRecord(ByteBuf buf, int length) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buf);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return decodeRecordStandard(buf, length);
-        }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
-        if (lastbyte == 0xFF) {
-            int nextbyte = sad.bytes[sad.pos++];
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
+    /**
+     * Fail and release all blocks written before the Codec was ready
+     */
+    private void failPendingWrites() {
+        PendingWrite pendingWrite = null;
+        while ((pendingWrite = pendingWrites.poll()) != null) {
+            if (pendingWrite.msg instanceof DataBlock) {
+                FtpDataBlock.release((DataBlock) pendingWrite.msg);
             } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
-                }
-                lastbyte = 0;
+                ReferenceCountUtil.release(pendingWrite.msg);
             }
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
         }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        context = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        failPendingWrites();
+        try {
+            super.handlerRemoved(ctx);
+        } finally {
+            endZlib();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failPendingWrites();
         try {
-            while (sad.pos < sad.limit) {
-                lastbyte = sad.bytes[sad.pos++];
-                if (lastbyte == 0xFF) {
-                    int nextbyte = sad.bytes[sad.pos++];
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
+            super.channelInactive(ctx);
+        } finally {
+            endZlib();
+        }
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext ctx, final ChannelPromise promise)
+            throws Exception {
+        if (deflater != null && !deflater.finished() && ctx.channel().isActive()) {
+            // End the compressed stream before closing
+            ctx.writeAndFlush(deflate(ctx.alloc(), null, true)).addListener(
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            ctx.close(promise);
                         }
-                    }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
-                }
-                lastbyte = 0;
+                    });
+            return;
+        }
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if (!isReady) {
+            // block might be written before the connection is fully ready
+            pendingWrites.add(new PendingWrite(msg, promise));
+            return;
+        }
+        if (msg instanceof DataBlock) {
+            // Encoded buffer written as is, without copy into an encoder buffer
+            DataBlock dataBlock = (DataBlock) msg;
+            ByteBuf next = encode(ctx.alloc(), dataBlock);
+            FtpDataBlock.recycle(dataBlock);
+            if (mode == TransferMode.ZLIB) {
+                // STREAM encoding then compression
+                next = deflate(ctx.alloc(), next, false);
             }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
+            ctx.write(next == null ? Unpooled.EMPTY_BUFFER : next, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * Decode a STREAM+RECORD buffer: runs between escapes are copied in bulk, and when there is
+     * no escape at all, the buffer is only sliced. An escape at the end of the buffer is kept
+     * until the next one.
+     * 
+     * @param alloc
+     * @param buf
+     * @param length
+     * @return the DataBlock
+     */
+    protected DataBlock decodeRecord(ByteBufAllocator alloc, ByteBuf buf, int length) {
+        ByteBuf newbuf = null;
+        if (lastbyte == 0xFF) {
+            // Escape received at the end of the previous buffer
+            lastbyte = 0;
+            newbuf = alloc.buffer(length);
+            decodeEscape(buf, newbuf);
+        }
+        int index = 0;
+        while ((index = buf.bytesBefore(ESCAPE)) >= 0) {
+            if (newbuf == null) {
+                newbuf = alloc.buffer(length);
+            }
+            newbuf.writeBytes(buf, index);
+            buf.skipBytes(1);
+            if (!buf.isReadable()) {
+                lastbyte = 0xFF;
+                break;
+            }
+            decodeEscape(buf, newbuf);
+        }
+        if (newbuf == null) {
+            // No escape at all
+            dataBlock.setBlock(buf.readRetainedSlice(buf.readableBytes()));
+        } else {
+            newbuf.writeBytes(buf);
+            dataBlock.setBlock(newbuf);
         }
-        sad.setReadPosition(0);
-        dataBlock.setBlock(newbuf);
         return dataBlock;
     }
 
+    /**
+     * Decode the byte following an escape
+     * 
+     * @param buf
+     * @param newbuf
+     */
+    private void decodeEscape(ByteBuf buf, ByteBuf newbuf) {
+        int nextbyte = buf.readUnsignedByte();
+        if (nextbyte == 0xFF) {
+            newbuf.writeByte(ESCAPE);
+        } else {
+            if (nextbyte == 1 || nextbyte == 3) {
+                dataBlock.setEOR(true);
+            }
+            if (nextbyte == 2 || nextbyte == 3) {
+                dataBlock.setEOF(true);
+            }
+        }
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
         // First test if the connection is fully ready (block might be
         // transfered
-        // by client before connection is ready)
+        // by client before connection is ready): if not, keep the bytes
+        // until setCodecReady
         if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
-            }
-            isReady = true;
+            return;
         }
         if (buf.readableBytes() == 0) {
             return;
         }
         // If STREAM Mode, no task to do, just next filter
         if (mode == TransferMode.STREAM) {
-            dataBlock = new DataBlock();
+            dataBlock = FtpDataBlock.newInstance();
             if (structure != TransferStructure.RECORD) {
-                ByteBuf newbuf = Unpooled.wrappedBuffer(buf);
-                buf.readerIndex(buf.readableBytes());
-                newbuf.retain();
-                dataBlock.setBlock(newbuf);
+                // no copy of the received buffer
+                dataBlock.setBlock(buf.readRetainedSlice(buf.readableBytes()));
                 out.add(dataBlock);
                 return;
             }
             // Except if RECORD Structure!
             int length = buf.readableBytes();
-            out.add(decodeRecord(buf, length));
+            out.add(decodeRecord(ctx.alloc(), buf, length));
+            return;
+        } else if (mode == TransferMode.ZLIB) {
+            addInflated(ctx.alloc(), inflate(ctx.alloc(), buf), out);
+            return;
+        } else if (mode == TransferMode.COMPRESSED) {
+            decodeCompressed(ctx.alloc(), buf, out);
             return;
         } else if (mode == TransferMode.BLOCK) {
             // Now we are in BLOCK Mode
@@ -282,7 +427,7 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             buf.markReaderIndex();
 
             if (dataBlock == null) {
-                dataBlock = new DataBlock();
+                dataBlock = FtpDataBlock.newInstance();
             }
             // Read the descriptor
             dataBlock.setDescriptor(buf.readByte());
@@ -306,7 +451,8 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             }
             if (dataBlock.getByteCount() > 0) {
                 // There's enough bytes in the buffer. Read it.
-                dataBlock.setBlock(buf.readBytes(dataBlock.getByteCount()));
+                // no copy of the payload
+                dataBlock.setBlock(buf.readRetainedSlice(dataBlock.getByteCount()));
             }
             DataBlock returnDataBlock = dataBlock;
             // Free the datablock for next frame
@@ -319,19 +465,60 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
     }
 
-    protected ByteBuf encodeRecordStandard(DataBlock msg, ByteBuf buffer) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+            throws Exception {
+        super.decodeLast(ctx, in, out);
+        if (isReady && mode == TransferMode.ZLIB && inflater != null && !inflater.finished()) {
+            // Flush what the inflater could still hold before it is ended
+            addInflated(ctx.alloc(), drainInflater(ctx.alloc(), 0), out);
+        }
+    }
+
+    /**
+     * Add the inflated buffer if any as a new DataBlock, decoded then as in STREAM mode
+     * 
+     * @param alloc
+     * @param inflated
+     * @param out
+     */
+    private void addInflated(ByteBufAllocator alloc, ByteBuf inflated, List<Object> out) {
+        if (inflated == null) {
+            return;
+        }
+        dataBlock = FtpDataBlock.newInstance();
+        if (structure != TransferStructure.RECORD) {
+            dataBlock.setBlock(inflated);
+            out.add(dataBlock);
+            return;
+        }
         try {
-            while (true) {
-                newbyte = buffer.readByte();
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
-                }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
+            out.add(decodeRecord(alloc, inflated, inflated.readableBytes()));
+        } finally {
+            inflated.release();
+        }
+    }
+
+    /**
+     * Encode a STREAM+RECORD block: escapes are doubled and runs between escapes are copied in
+     * bulk. The payload buffer is released.
+     * 
+     * @param alloc
+     * @param msg
+     * @param buffer
+     * @return the ByteBuf
+     */
+    protected ByteBuf encodeRecord(ByteBufAllocator alloc, DataBlock msg, ByteBuf buffer) {
+        int length = buffer == null ? 0 : buffer.readableBytes();
+        ByteBuf newbuf = alloc.buffer(length + 2);
+        if (buffer != null) {
+            int index = 0;
+            while ((index = buffer.bytesBefore(ESCAPE)) >= 0) {
+                newbuf.writeBytes(buffer, index + 1);
+                newbuf.writeByte(ESCAPE);
             }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
+            newbuf.writeBytes(buffer);
+            buffer.release();
         }
         int value = 0;
         if (msg.isEOF()) {
@@ -341,131 +528,468 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             value += 1;
         }
         if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
+            newbuf.writeByte(ESCAPE);
+            newbuf.writeByte(value);
         }
         msg.clear();
         return newbuf;
     }
 
-    protected ByteBuf encodeRecord(DataBlock msg, ByteBuf buffer) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buffer);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return encodeRecordStandard(msg, buffer);
+    /**
+     * Encode a BLOCK mode DataBlock as one composite buffer of headers and retained slices of the
+     * payload, so without any copy of the payload. The payload buffer is released.
+     * 
+     * @param alloc
+     * @param msg
+     * @param buffer
+     * @return the ByteBuf or null when the last block is already done
+     */
+    protected ByteBuf encodeBlock(ByteBufAllocator alloc, DataBlock msg, ByteBuf buffer) {
+        int length = msg.getByteCount();
+        // Is this a Restart so only Markers
+        if (msg.isRESTART()) {
+            ByteBuf newbuf = alloc.buffer(length + 3);
+            newbuf.writeByte(msg.getDescriptor());
+            newbuf.writeByte(msg.getByteCountUpper());
+            newbuf.writeByte(msg.getByteCountLower());
+            newbuf.writeBytes(msg.getByteMarkers());
+            msg.clear();
+            return newbuf;
         }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
-        try {
-            while (sad.pos < sad.limit) {
-                newbyte = sad.bytes[sad.pos++];
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
-                }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
+        // Is there any data left
+        if (length == 0 || buffer == null) {
+            if (buffer != null) {
+                buffer.release();
             }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
-        }
-        int value = 0;
-        if (msg.isEOF()) {
-            value += 2;
-        }
-        if (msg.isEOR()) {
-            value += 1;
+            // It could be an empty block for EOR or EOF
+            if (msg.isEOF() || msg.isEOR()) {
+                ByteBuf newbuf = alloc.buffer(3);
+                newbuf.writeByte(msg.getDescriptor());
+                newbuf.writeByte(0);
+                newbuf.writeByte(0);
+                msg.clear();
+                return newbuf;
+            }
+            // This was the very last call
+            msg.clear();
+            return null;
         }
-        if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
+        CompositeByteBuf newbuf = alloc.compositeBuffer(2 * (length / 0xFFFF + 1));
+        // Work on sub blocks, ignoring descriptor since it is not the last one
+        while (length > 0xFFFF) {
+            ByteBuf header = alloc.buffer(3);
+            header.writeByte(0);
+            header.writeByte(0xFF);
+            header.writeByte(0xFF);
+            newbuf.addComponent(true, header);
+            newbuf.addComponent(true, buffer.readRetainedSlice(0xFFFF));
+            length -= 0xFFFF;
         }
+        // Last final block, using the descriptor
+        ByteBuf header = alloc.buffer(3);
+        header.writeByte(msg.getDescriptor());
+        header.writeByte(length >> 8);
+        header.writeByte(length);
+        newbuf.addComponent(true, header);
+        newbuf.addComponent(true, buffer.readRetainedSlice(length));
+        buffer.release();
         msg.clear();
-        sad.setReadPosition(0);
         return newbuf;
     }
 
     /**
      * Encode a DataBlock in the correct format for Mode
      * 
+     * @param alloc
      * @param msg
      * @return the ByteBuf or null when the last block is already done
      * @throws InvalidArgumentException
      */
-    protected ByteBuf encode(DataBlock msg)
+    protected ByteBuf encode(ByteBufAllocator alloc, DataBlock msg)
             throws InvalidArgumentException {
         if (msg.isCleared()) {
             return null;
         }
         ByteBuf buffer = msg.getBlock();
-        if (mode == TransferMode.STREAM) {
+        if (mode == TransferMode.STREAM || mode == TransferMode.ZLIB) {
             // If record structure, special attention
             if (structure == TransferStructure.RECORD) {
-                return encodeRecord(msg, buffer);
+                return encodeRecord(alloc, msg, buffer);
             }
             msg.clear();
             return buffer;
         } else if (mode == TransferMode.BLOCK) {
-            int length = msg.getByteCount();
-            ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length > 0xFFFF ? 0xFFFF + 3 : length + 3);
-            byte[] header = new byte[3];
-            // Is there any data left
-            if (length == 0) {
-                // It could be an empty block for EOR or EOF
-                if (msg.isEOF() || msg.isEOR()) {
-                    header[0] = msg.getDescriptor();
-                    header[1] = 0;
-                    header[2] = 0;
-                    newbuf.writeBytes(header);
-                    // Next call will be the last one
-                    msg.clear();
-                    // return the last block
-                    return newbuf;
+            return encodeBlock(alloc, msg, buffer);
+        } else if (mode == TransferMode.COMPRESSED) {
+            return encodeCompressed(alloc, msg, buffer);
+        }
+        // Mode unimplemented
+        throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
+    }
+
+    /**
+     * Decode COMPRESSED mode units: regular strings, replicated bytes, filler strings and escape
+     * sequences. An incomplete unit is kept in the buffer until the next call.
+     * 
+     * @param alloc
+     * @param buf
+     * @param out
+     * @throws InvalidArgumentException
+     */
+    private void decodeCompressed(ByteBufAllocator alloc, ByteBuf buf, List<Object> out)
+            throws InvalidArgumentException {
+        ByteBuf data = null;
+        while (buf.isReadable()) {
+            int readerIndex = buf.readerIndex();
+            int header = buf.getUnsignedByte(readerIndex);
+            if (header == 0) {
+                // Escape sequence: 0 then a descriptor as in BLOCK mode
+                if (buf.readableBytes() < 2) {
+                    break;
                 }
-                // This was the very last call
-                msg.clear();
-                // return the end of encode
-                return null;
-            }
-            // Is this a Restart so only Markers
-            if (msg.isRESTART()) {
-                header[0] = msg.getDescriptor();
-                header[1] = msg.getByteCountUpper();
-                header[2] = msg.getByteCountLower();
-                newbuf.writeBytes(header);
-                newbuf.writeBytes(msg.getByteMarkers());
-                // Next call will be the last one
-                msg.clear();
-                // return the last block
-                return newbuf;
+                byte descriptor = buf.getByte(readerIndex + 1);
+                DataBlock block = FtpDataBlock.newInstance();
+                if ((descriptor & 16) != 0) {
+                    // Restart marker, sent as the following regular string
+                    if (buf.readableBytes() < 3) {
+                        break;
+                    }
+                    int length = buf.getUnsignedByte(readerIndex + 2);
+                    if ((length & 0x80) != 0) {
+                        if (data != null) {
+                            data.release();
+                        }
+                        throw new InvalidArgumentException(
+                                "Invalid restart marker in COMPRESSED mode");
+                    }
+                    if (buf.readableBytes() < 3 + length) {
+                        break;
+                    }
+                    addCompressedData(data, out);
+                    data = null;
+                    buf.skipBytes(3);
+                    block.setDescriptor(descriptor);
+                    block.setBlock(buf.readRetainedSlice(length));
+                    out.add(block);
+                    continue;
+                }
+                buf.skipBytes(2);
+                // EOR or EOF: ends the current block
+                block.setDescriptor(descriptor);
+                block.setBlock(data == null ? Unpooled.EMPTY_BUFFER : data);
+                data = null;
+                out.add(block);
+                continue;
             }
-            // Work on sub block, ignoring descriptor since it is not the last
-            // one
-            if (length > 0xFFFF) {
-                header[0] = 0;
-                header[1] = (byte) 0xFF;
-                header[2] = (byte) 0xFF;
-                newbuf.writeBytes(header);
-                // Now take the first 0xFFFF bytes from buffer
-                newbuf.writeBytes(msg.getBlock(), 0xFFFF);
-                length -= 0xFFFF;
-                msg.setByteCount(length);
-                // return the sub block
-                return newbuf;
+            int count = 0;
+            if ((header & 0x80) == 0) {
+                // Regular string of header bytes
+                count = header;
+                if (buf.readableBytes() < 1 + count) {
+                    break;
+                }
+                buf.skipBytes(1);
+                data = ensureData(alloc, data, buf);
+                data.writeBytes(buf, count);
+            } else if ((header & 0x40) == 0) {
+                // Replicated byte
+                count = header & 0x3F;
+                if (buf.readableBytes() < 2) {
+                    break;
+                }
+                buf.skipBytes(1);
+                byte value = buf.readByte();
+                data = ensureData(alloc, data, buf);
+                for (int i = 0; i < count; i++) {
+                    data.writeByte(value);
+                }
+            } else {
+                // Filler string
+                count = header & 0x3F;
+                buf.skipBytes(1);
+                data = ensureData(alloc, data, buf);
+                for (int i = 0; i < count; i++) {
+                    data.writeByte(filler);
+                }
             }
-            // Last final block, using the descriptor
-            header[0] = msg.getDescriptor();
-            header[1] = msg.getByteCountUpper();
-            header[2] = msg.getByteCountLower();
-            newbuf.writeBytes(header);
-            // real data
-            newbuf.writeBytes(buffer, length);
-            // Next call will be the last one
+        }
+        addCompressedData(data, out);
+    }
+
+    /**
+     * 
+     * @param alloc
+     * @param data
+     * @param buf
+     * @return the current decoded buffer, allocated if needed
+     */
+    private ByteBuf ensureData(ByteBufAllocator alloc, ByteBuf data, ByteBuf buf) {
+        if (data == null) {
+            return alloc.buffer(buf.readableBytes() << 1);
+        }
+        return data;
+    }
+
+    /**
+     * Add the decoded data if any as a new DataBlock
+     * 
+     * @param data
+     * @param out
+     */
+    private void addCompressedData(ByteBuf data, List<Object> out) {
+        if (data == null) {
+            return;
+        }
+        if (!data.isReadable()) {
+            data.release();
+            return;
+        }
+        DataBlock block = FtpDataBlock.newInstance();
+        block.setBlock(data);
+        out.add(block);
+    }
+
+    /**
+     * Encode a COMPRESSED mode DataBlock: runs of at least 3 identical bytes (2 for the filler
+     * byte) are replicated or filler strings, other bytes are regular strings, and EOR/EOF and
+     * restart markers are escape sequences. The payload buffer is released.
+     * 
+     * @param alloc
+     * @param msg
+     * @param buffer
+     * @return the ByteBuf or null when the last block is already done
+     */
+    protected ByteBuf encodeCompressed(ByteBufAllocator alloc, DataBlock msg, ByteBuf buffer) {
+        if (msg.isRESTART()) {
+            byte[] markers = msg.getByteMarkers();
+            int length = Math.min(markers.length, 0x7F);
+            ByteBuf newbuf = alloc.buffer(length + 3);
+            newbuf.writeByte(0);
+            newbuf.writeByte(msg.getDescriptor());
+            newbuf.writeByte(length);
+            newbuf.writeBytes(markers, 0, length);
             msg.clear();
-            // return the last block
             return newbuf;
         }
-        // Mode unimplemented
-        throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
+        int length = buffer == null ? 0 : buffer.readableBytes();
+        boolean escape = msg.isEOF() || msg.isEOR();
+        if (length == 0 && !escape) {
+            if (buffer != null) {
+                buffer.release();
+            }
+            // This was the very last call
+            msg.clear();
+            return null;
+        }
+        ByteBuf newbuf = alloc.buffer(length + length / 0x7F + 3);
+        if (length > 0) {
+            if (buffer.hasArray()) {
+                compress(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), length,
+                        newbuf);
+            } else {
+                compress(copyToHeap(buffer, length), 0, length, newbuf);
+            }
+        }
+        if (buffer != null) {
+            buffer.release();
+        }
+        if (escape) {
+            newbuf.writeByte(0);
+            newbuf.writeByte(msg.getDescriptor());
+        }
+        msg.clear();
+        return newbuf;
+    }
+
+    /**
+     * Compress the bytes into COMPRESSED mode units
+     * 
+     * @param array
+     * @param offset
+     * @param length
+     * @param out
+     */
+    private void compress(byte[] array, int offset, int length, ByteBuf out) {
+        int end = offset + length;
+        int literal = offset;
+        int i = offset;
+        while (i < end) {
+            byte value = array[i];
+            int run = 1;
+            while (i + run < end && run < 0x3F && array[i + run] == value) {
+                run++;
+            }
+            if (run >= 3 || (run == 2 && value == filler)) {
+                writeRegular(array, literal, i, out);
+                if (value == filler) {
+                    out.writeByte(0xC0 | run);
+                } else {
+                    out.writeByte(0x80 | run);
+                    out.writeByte(value);
+                }
+                literal = i + run;
+            }
+            i += run;
+        }
+        writeRegular(array, literal, end, out);
+    }
+
+    /**
+     * Write bytes as regular strings (at most 127 bytes each)
+     * 
+     * @param array
+     * @param from
+     * @param to
+     * @param out
+     */
+    private static void writeRegular(byte[] array, int from, int to, ByteBuf out) {
+        while (from < to) {
+            int count = Math.min(to - from, 0x7F);
+            out.writeByte(count);
+            out.writeBytes(array, from, count);
+            from += count;
+        }
+    }
+
+    /**
+     * Inflate the received bytes (ZLIB mode)
+     * 
+     * @param alloc
+     * @param buf
+     * @return the inflated buffer or null if none
+     * @throws InvalidArgumentException
+     */
+    private ByteBuf inflate(ByteBufAllocator alloc, ByteBuf buf) throws InvalidArgumentException {
+        int length = buf.readableBytes();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (inflater.finished()) {
+            // After the end of the compressed stream: ignored
+            buf.skipBytes(length);
+            return null;
+        }
+        if (buf.hasArray()) {
+            inflater.setInput(buf.array(), buf.arrayOffset() + buf.readerIndex(), length);
+        } else {
+            inflater.setInput(copyToHeap(buf, length), 0, length);
+        }
+        buf.skipBytes(length);
+        return drainInflater(alloc, length);
+    }
+
+    /**
+     * Get all the bytes the inflater could produce from its current input, growing the output
+     * as needed: the inflater might still hold output even when the buffer was filled exactly
+     * 
+     * @param alloc
+     * @param length
+     *            the length of the last input
+     * @return the inflated buffer or null if none
+     * @throws InvalidArgumentException
+     */
+    private ByteBuf drainInflater(ByteBufAllocator alloc, int length)
+            throws InvalidArgumentException {
+        ByteBuf out = alloc.heapBuffer(length > 0 ? length << 1 : 256);
+        try {
+            while (true) {
+                if (!out.isWritable()) {
+                    out.ensureWritable(out.capacity());
+                }
+                int size = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                        out.writableBytes());
+                out.writerIndex(out.writerIndex() + size);
+                if (inflater.needsDictionary()) {
+                    throw new InvalidArgumentException("Compressed data needs a dictionary");
+                }
+                if (size == 0 && (inflater.needsInput() || inflater.finished())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            out.release();
+            throw new InvalidArgumentException("Invalid compressed data: " + e.getMessage());
+        } catch (InvalidArgumentException e) {
+            out.release();
+            throw e;
+        }
+        if (!out.isReadable()) {
+            out.release();
+            return null;
+        }
+        return out;
+    }
+
+    /**
+     * Deflate the buffer to send (ZLIB mode)
+     * 
+     * @param alloc
+     * @param buf
+     *            the buffer to compress (released), might be null
+     * @param finish
+     *            True to end the compressed stream
+     * @return the compressed buffer (possibly empty)
+     */
+    private ByteBuf deflate(ByteBufAllocator alloc, ByteBuf buf, boolean finish) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        int length = buf == null ? 0 : buf.readableBytes();
+        ByteBuf out = alloc.heapBuffer((length >> 1) + 64);
+        try {
+            if (length > 0) {
+                if (buf.hasArray()) {
+                    deflater.setInput(buf.array(), buf.arrayOffset() + buf.readerIndex(), length);
+                } else {
+                    deflater.setInput(copyToHeap(buf, length), 0, length);
+                }
+                buf.skipBytes(length);
+            }
+            if (finish) {
+                deflater.finish();
+            }
+            while (finish ? !deflater.finished() : !deflater.needsInput()) {
+                if (!out.isWritable()) {
+                    out.ensureWritable(out.capacity());
+                }
+                int size = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                        out.writableBytes());
+                out.writerIndex(out.writerIndex() + size);
+            }
+        } finally {
+            if (buf != null) {
+                buf.release();
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 
+     * @param buf
+     * @param length
+     * @return a heap copy of the readable bytes of buf (reused array)
+     */
+    private byte[] copyToHeap(ByteBuf buf, int length) {
+        if (heapInput == null || heapInput.length < length) {
+            heapInput = new byte[length];
+        }
+        buf.getBytes(buf.readerIndex(), heapInput, 0, length);
+        return heapInput;
+    }
+
+    /**
+     * Release the Inflater and Deflater if any
+     */
+    private void endZlib() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
     }
 
     /**
@@ -483,6 +1007,31 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         this.mode = mode;
     }
 
+    /**
+     * @param type
+     *            the transfer type, giving the filler byte for COMPRESSED mode
+     */
+    public void setType(TransferType type) {
+        if (type == TransferType.ASCII) {
+            filler = 0x20;
+        } else if (type == TransferType.EBCDIC) {
+            filler = 0x40;
+        } else {
+            filler = 0;
+        }
+    }
+
+    /**
+     * @param level
+     *            the compression level to set for ZLIB mode
+     */
+    public void setLevel(int level) {
+        this.level = level;
+        if (deflater != null) {
+            deflater.setLevel(level);
+        }
+    }
+
     /**
      * @return the structure
      */
@@ -500,20 +1049,13 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
 
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, ByteBuf out) throws Exception {
-        // First test if the connection is fully ready (block might be
-        // transfered
-        // by client before connection is ready)
-        if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
-            }
-            isReady = true;
-        }
-        ByteBuf next = encode(msg);
+        // DataBlocks are normally encoded directly in write, without this copy
+        ByteBuf next = encode(ctx.alloc(), msg);
         // Could be splitten in several block
         while (next != null) {
             out.writeBytes(next);
-            next = encode(msg);
+            next.release();
+            next = encode(ctx.alloc(), msg);
         }
     }
 }
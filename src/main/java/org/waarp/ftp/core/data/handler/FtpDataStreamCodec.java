@@ -0,0 +1,74 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import org.waarp.common.file.DataBlock;
+
+/**
+ * Pass-through CODEC, replacing the Mode, Type and Structure codecs when the data connection is
+ * in STREAM mode, FILE structure and IMAGE type, so without any transformation of the data:<br>
+ * - encode : takes a {@link DataBlock} and writes its ByteBuf as is<br>
+ * - decode : takes a ByteBuf and wraps it in a {@link DataBlock}, without any cumulation
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+@Sharable
+class FtpDataStreamCodec extends ChannelDuplexHandler {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) msg;
+            if (!buf.isReadable()) {
+                buf.release();
+                return;
+            }
+            DataBlock dataBlock = FtpDataBlock.newInstance();
+            dataBlock.setBlock(buf);
+            ctx.fireChannelRead(dataBlock);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if (msg instanceof DataBlock) {
+            DataBlock dataBlock = (DataBlock) msg;
+            if (dataBlock.isCleared() || dataBlock.getBlock() == null) {
+                // the last block is already done
+                ctx.write(Unpooled.EMPTY_BUFFER, promise);
+                return;
+            }
+            ByteBuf buf = dataBlock.getBlock();
+            FtpDataBlock.recycle(dataBlock);
+            ctx.write(buf, promise);
+            return;
+        }
+        ctx.write(msg, promise);
+    }
+}
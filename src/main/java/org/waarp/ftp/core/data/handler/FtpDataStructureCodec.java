@@ -33,7 +33,8 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
  * FILE and RECORD are implemented (DataNetworkHandler will do the real job). PAGE is not
  * implemented.<br>
  * Note that real actions are taken in the DataNetworkHandler according to the implementation of
- * FtpFile.
+ * FtpFile.<br>
+ * Codecs are immutable and shared: one instance per structure (see getCodec).
  * 
  * @author Frederic Bregier
  * 
@@ -96,32 +97,45 @@ class FtpDataStructureCodec extends MessageToMessageCodec<DataBlock, DataBlock>
      * transmitted. Conversely, FTP implementations must return a file identical to the original if
      * the parameters used to store and retrieve a file are the same.
      */
+    /**
+     * Shared codecs by structure
+     */
+    private static final FtpDataStructureCodec[] codecs =
+            new FtpDataStructureCodec[TransferStructure.values().length];
+
+    static {
+        for (TransferStructure structure : TransferStructure.values()) {
+            codecs[structure.ordinal()] = new FtpDataStructureCodec(structure);
+        }
+    }
+
     /**
      * Structure of transfer
      */
-    private TransferStructure structure = null;
+    private final TransferStructure structure;
 
     /**
      * @param structure
      */
-    public FtpDataStructureCodec(TransferStructure structure) {
+    private FtpDataStructureCodec(TransferStructure structure) {
         super();
         this.structure = structure;
     }
 
     /**
-     * @return the structure
+     * 
+     * @param structure
+     * @return the shared codec for this structure
      */
-    public TransferStructure getStructure() {
-        return structure;
+    static FtpDataStructureCodec getCodec(TransferStructure structure) {
+        return codecs[structure.ordinal()];
     }
 
     /**
-     * @param structure
-     *            the structure to set
+     * @return the structure
      */
-    public void setStructure(TransferStructure structure) {
-        this.structure = structure;
+    public TransferStructure getStructure() {
+        return structure;
     }
 
     @Override
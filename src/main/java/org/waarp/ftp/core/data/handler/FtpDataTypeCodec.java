@@ -17,7 +17,6 @@
  */
 package org.waarp.ftp.core.data.handler;
 
-import java.nio.charset.Charset;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
@@ -25,6 +24,8 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 
 import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
@@ -35,7 +36,10 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
  * Second CODEC :<br>
  * - encode/decode : takes a {@link DataBlock} and transforms it to a new {@link DataBlock} according
  * to the types<br>
- * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.
+ * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.<br>
+ * ASCII and EBCDIC are converted by a {@link FtpDataTypeConverter} per direction, kept as a
+ * channel attribute since the conversion state must be kept across blocks.<br>
+ * Codecs are immutable and shared: one instance per type and subtype (see getCodec).
  * 
  * @author Frederic Bregier
  * 
@@ -121,47 +125,70 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
      * these format effectors are overridden by the ASA controls.
      */
     /**
-     * Charset to use
+     * Converter from network to local data
      */
-    private Charset charsetName;
+    private static final AttributeKey<FtpDataTypeConverter> DECODER = AttributeKey.valueOf(
+            FtpDataTypeCodec.class, "DECODER");
+
+    /**
+     * Converter from local to network data
+     */
+    private static final AttributeKey<FtpDataTypeConverter> ENCODER = AttributeKey.valueOf(
+            FtpDataTypeCodec.class, "ENCODER");
+
+    /**
+     * Shared codecs by type and subtype
+     */
+    private static final FtpDataTypeCodec[][] codecs =
+            new FtpDataTypeCodec[TransferType.values().length][TransferSubType.values().length];
+
+    static {
+        for (TransferType type : TransferType.values()) {
+            for (TransferSubType subType : TransferSubType.values()) {
+                codecs[type.ordinal()][subType.ordinal()] = new FtpDataTypeCodec(type, subType);
+            }
+        }
+    }
 
     /**
      * Type of transfer
      */
-    private TransferType type = null;
+    private final TransferType type;
 
     /**
      * Sub Type of transfer
      */
-    private TransferSubType subType = null;
+    private final TransferSubType subType;
 
     /**
      * @param type
      * @param subType
      */
-    public FtpDataTypeCodec(TransferType type, TransferSubType subType) {
+    private FtpDataTypeCodec(TransferType type, TransferSubType subType) {
         super();
-        setCharset(null);
         this.type = type;
         this.subType = subType;
     }
 
     /**
-     * @return the subType
+     * 
+     * @param type
+     * @param subType
+     *            (NONPRINT if null)
+     * @return the shared codec for this type and subtype
      */
-    public TransferSubType getSubType() {
-        return subType;
+    static FtpDataTypeCodec getCodec(TransferType type, TransferSubType subType) {
+        if (subType == null) {
+            subType = TransferSubType.NONPRINT;
+        }
+        return codecs[type.ordinal()][subType.ordinal()];
     }
 
     /**
-     * @param type
-     *            the type to set
-     * @param subType
-     *            the subType to set
+     * @return the subType
      */
-    public void setFullType(TransferType type, TransferSubType subType) {
-        this.type = type;
-        this.subType = subType;
+    public TransferSubType getSubType() {
+        return subType;
     }
 
     /**
@@ -172,16 +199,64 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     }
 
     /**
-     * Set the charset
      * 
-     * @param charset
+     * @param ctx
+     * @param key
+     * @param fromNetwork
+     * @return the converter of this channel for the current type
      */
-    private void setCharset(Charset charset) {
-        if (charset == null) {
-            charsetName = Charset.defaultCharset();
-        } else {
-            charsetName = charset;
+    private FtpDataTypeConverter getConverter(ChannelHandlerContext ctx,
+            AttributeKey<FtpDataTypeConverter> key, boolean fromNetwork) {
+        Attribute<FtpDataTypeConverter> attribute = ctx.channel().attr(key);
+        FtpDataTypeConverter converter = attribute.get();
+        if (converter == null || !converter.isFor(type, subType)) {
+            converter = new FtpDataTypeConverter(type, subType, fromNetwork);
+            attribute.set(converter);
         }
+        return converter;
+    }
+
+    /**
+     * Convert the block of the DataBlock, releasing the original one
+     * 
+     * @param ctx
+     * @param msg
+     * @param converter
+     * @throws Exception
+     */
+    private void convert(ChannelHandlerContext ctx, DataBlock msg, FtpDataTypeConverter converter)
+            throws Exception {
+        ByteBuf buffer = msg.getBlock();
+        if (buffer == null) {
+            if (msg.isEOF() && converter.hasPending()) {
+                msg.setBlock(converter.convert(Unpooled.EMPTY_BUFFER, ctx.alloc(), true));
+            }
+            return;
+        }
+        try {
+            msg.setBlock(converter.convert(buffer, ctx.alloc(), msg.isEOF()));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Flush the pending received data if any before closing
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        FtpDataTypeConverter converter = ctx.channel().attr(DECODER).getAndSet(null);
+        if (converter != null && converter.hasPending()) {
+            ByteBuf last = converter.convert(Unpooled.EMPTY_BUFFER, ctx.alloc(), true);
+            if (last.isReadable()) {
+                DataBlock dataBlock = FtpDataBlock.newInstance();
+                dataBlock.setBlock(last);
+                ctx.fireChannelRead(dataBlock);
+            } else {
+                last.release();
+            }
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
@@ -191,8 +266,7 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
             out.add(msg);
             return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(decode(buffer));
+            convert(ctx, msg, getConverter(ctx, DECODER, true));
             out.add(msg);
             return;
         }
@@ -201,18 +275,6 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
                 this.getClass().getName() + " codec " + type.name());
     }
 
-    /**
-     * 
-     * @param ByteBuf
-     * @return the ByteBuf
-     * @throws Exception
-     */
-    protected ByteBuf decode(ByteBuf ByteBuf)
-            throws Exception {
-        return Unpooled.copiedBuffer(ByteBuf
-                .toString(type.charset), charsetName);
-    }
-
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, List<Object> out) throws Exception {
         // Is an ASCII or EBCDIC mode or IMAGE mode
@@ -220,8 +282,7 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
             out.add(msg);
             return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(encode(buffer));
+            convert(ctx, msg, getConverter(ctx, ENCODER, false));
             out.add(msg);
             return;
         }
@@ -229,16 +290,4 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
         throw new InvalidArgumentException("Type unimplemented in " +
                 this.getClass().getName() + " codec " + type.name());
     }
-
-    /**
-     * 
-     * @param ByteBuf
-     * @return the encoded buffer
-     * @throws Exception
-     */
-    protected ByteBuf encode(ByteBuf ByteBuf)
-            throws Exception {
-        String chString = ByteBuf.toString(charsetName);
-        return Unpooled.copiedBuffer(chString, type.charset);
-    }
 }
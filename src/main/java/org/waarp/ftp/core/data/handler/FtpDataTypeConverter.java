@@ -0,0 +1,434 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ByteProcessor;
+
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferSubType;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+
+/**
+ * Streaming conversion of ASCII or EBCDIC data between the network charset and the local
+ * charset, for one direction of one data channel.<br>
+ * The state (partial multi-byte character, pending CR) is kept across blocks. For ASCII, line
+ * endings are converted between the network CRLF and the local line separator. When both
+ * charsets are single-byte and no line conversion is needed (EBCDIC), a byte to byte table is
+ * used; otherwise single-byte charsets use a table instead of the CharsetDecoder or
+ * CharsetEncoder.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FtpDataTypeConverter {
+    /**
+     * Byte to char tables of single-byte charsets
+     */
+    private static final ConcurrentHashMap<Charset, char[]> decodeTables = new ConcurrentHashMap<Charset, char[]>();
+
+    /**
+     * Char to byte tables of single-byte charsets (value is byte + 1, 0 for unmappable)
+     */
+    private static final ConcurrentHashMap<Charset, char[]> encodeTables = new ConcurrentHashMap<Charset, char[]>();
+
+    /**
+     * Network CRLF
+     */
+    private static final char[] CRLF = { '\r', '\n' };
+
+    /**
+     * Type of transfer
+     */
+    private final TransferType type;
+
+    /**
+     * Sub Type of transfer
+     */
+    private final TransferSubType subType;
+
+    /**
+     * True if data is only copied
+     */
+    private final boolean identity;
+
+    /**
+     * Byte to byte table when both charsets are single-byte and no line conversion is needed
+     */
+    private final byte[] byteTable;
+
+    /**
+     * Byte to char table if the source charset is single-byte
+     */
+    private final char[] decodeTable;
+
+    /**
+     * Char to byte table if the target charset is single-byte
+     */
+    private final char[] encodeTable;
+
+    /**
+     * Replacement byte for unmappable chars with encodeTable
+     */
+    private final byte replacement;
+
+    private final CharsetDecoder decoder;
+
+    private final CharsetEncoder encoder;
+
+    /**
+     * Target line separator, null if no line conversion
+     */
+    private final char[] lineSeparator;
+
+    /**
+     * CR received at the end of the previous block
+     */
+    private boolean pendingCR = false;
+
+    /**
+     * Bytes of a partial character received at the end of the previous block
+     */
+    private ByteBuffer pendingBytes = null;
+
+    /**
+     * Decoded chars (reused)
+     */
+    private CharBuffer chars = CharBuffer.allocate(0);
+
+    /**
+     * Chars to encode, including the ones left by the previous block (reused)
+     */
+    private CharBuffer lines = CharBuffer.allocate(0);
+
+    /**
+     * Current output of the table driven processors
+     */
+    private ByteBuf output = null;
+
+    private final ByteProcessor byteTableProcessor = new ByteProcessor() {
+        public boolean process(byte value) throws Exception {
+            output.writeByte(byteTable[value & 0xFF]);
+            return true;
+        }
+    };
+
+    private final ByteProcessor decodeTableProcessor = new ByteProcessor() {
+        public boolean process(byte value) throws Exception {
+            chars.put(decodeTable[value & 0xFF]);
+            return true;
+        }
+    };
+
+    /**
+     * @param type
+     * @param subType
+     * @param fromNetwork
+     *            True to convert from the network to the local charset (decode), False for the
+     *            reverse (encode)
+     */
+    FtpDataTypeConverter(TransferType type, TransferSubType subType, boolean fromNetwork) {
+        this.type = type;
+        this.subType = subType;
+        Charset local = Charset.defaultCharset();
+        Charset source = fromNetwork ? type.charset : local;
+        Charset target = fromNetwork ? local : type.charset;
+        if (type == TransferType.ASCII) {
+            lineSeparator = fromNetwork ? System.getProperty("line.separator").toCharArray() : CRLF;
+        } else {
+            lineSeparator = null;
+        }
+        decoder = source.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder = target.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        replacement = encoder.replacement()[0];
+        identity = lineSeparator == null && source.equals(target);
+        decodeTable = getDecodeTable(source);
+        encodeTable = getEncodeTable(target);
+        if (lineSeparator == null && decodeTable != null && encodeTable != null) {
+            byteTable = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                byteTable[i] = encode(decodeTable[i]);
+            }
+        } else {
+            byteTable = null;
+        }
+    }
+
+    /**
+     * 
+     * @param charset
+     * @return the byte to char table if charset is single-byte, else null
+     */
+    private static char[] getDecodeTable(Charset charset) {
+        char[] table = decodeTables.get(charset);
+        if (table != null) {
+            return table;
+        }
+        CharsetDecoder decoder = charset.newDecoder();
+        if (decoder.maxCharsPerByte() != 1.0f || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return null;
+        }
+        decoder.onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        table = new char[256];
+        byte[] one = new byte[1];
+        for (int i = 0; i < 256; i++) {
+            one[0] = (byte) i;
+            decoder.reset();
+            try {
+                CharBuffer result = decoder.decode(ByteBuffer.wrap(one));
+                table[i] = result.hasRemaining() ? result.get() : '\uFFFD';
+            } catch (Exception e) {
+                table[i] = '\uFFFD';
+            }
+        }
+        decodeTables.putIfAbsent(charset, table);
+        return table;
+    }
+
+    /**
+     * 
+     * @param charset
+     * @return the char to byte table if charset is single-byte, else null
+     */
+    private static char[] getEncodeTable(Charset charset) {
+        char[] table = encodeTables.get(charset);
+        if (table != null) {
+            return table;
+        }
+        char[] decode = getDecodeTable(charset);
+        if (decode == null) {
+            return null;
+        }
+        table = new char[0x10000];
+        for (int i = 255; i >= 0; i--) {
+            if (decode[i] != '\uFFFD') {
+                table[decode[i]] = (char) (i + 1);
+            }
+        }
+        encodeTables.putIfAbsent(charset, table);
+        return table;
+    }
+
+    /**
+     * 
+     * @param type
+     * @param subType
+     * @return True if this converter is for this type and subType
+     */
+    boolean isFor(TransferType type, TransferSubType subType) {
+        return this.type == type && this.subType == subType;
+    }
+
+    /**
+     * 
+     * @return True if some data is kept from the previous block
+     */
+    boolean hasPending() {
+        return pendingCR || (pendingBytes != null && pendingBytes.position() > 0) ||
+                lines.position() > 0;
+    }
+
+    /**
+     * Convert one block
+     * 
+     * @param in
+     *            the block to convert (not released)
+     * @param alloc
+     * @param last
+     *            True if this is the last block (all pending data are flushed)
+     * @return the converted block
+     * @throws Exception
+     */
+    ByteBuf convert(ByteBuf in, ByteBufAllocator alloc, boolean last) throws Exception {
+        if (identity) {
+            return in.retain();
+        }
+        if (byteTable != null) {
+            output = alloc.buffer(in.readableBytes());
+            try {
+                in.forEachByte(byteTableProcessor);
+                return output;
+            } finally {
+                output = null;
+            }
+        }
+        decode(in, last);
+        if (lineSeparator == null) {
+            lines = ensureCapacity(lines, chars.remaining());
+            lines.put(chars);
+        } else {
+            lines = ensureCapacity(lines, chars.remaining() * lineSeparator.length + 1);
+            convertLines(last);
+        }
+        return encode(alloc, last);
+    }
+
+    /**
+     * Decode the block (and the pending bytes) into chars
+     * 
+     * @param in
+     * @param last
+     */
+    private void decode(ByteBuf in, boolean last) {
+        int length = in.readableBytes();
+        if (decodeTable != null) {
+            chars = ensureEmpty(chars, length);
+            if (length > 0) {
+                in.forEachByte(decodeTableProcessor);
+            }
+            chars.flip();
+            return;
+        }
+        ByteBuffer src = in.nioBuffer();
+        if (pendingBytes != null && pendingBytes.position() > 0) {
+            // Partial character from the previous block
+            pendingBytes.flip();
+            ByteBuffer full = ByteBuffer.allocate(pendingBytes.remaining() + src.remaining());
+            full.put(pendingBytes).put(src).flip();
+            pendingBytes.clear();
+            src = full;
+        }
+        chars = ensureEmpty(chars, (int) (src.remaining() * decoder.maxCharsPerByte()) + 16);
+        decoder.decode(src, chars, last);
+        if (last) {
+            decoder.flush(chars);
+            decoder.reset();
+        } else if (src.hasRemaining()) {
+            if (pendingBytes == null || pendingBytes.capacity() < src.remaining()) {
+                pendingBytes = ByteBuffer.allocate(Math.max(16, src.remaining()));
+            }
+            pendingBytes.put(src);
+        }
+        chars.flip();
+    }
+
+    /**
+     * Convert line endings from chars into lines: CRLF or a lone LF become the target line
+     * separator, a lone CR is kept
+     * 
+     * @param last
+     */
+    private void convertLines(boolean last) {
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (pendingCR) {
+                pendingCR = false;
+                if (c == '\n') {
+                    lines.put(lineSeparator);
+                    continue;
+                }
+                lines.put('\r');
+            }
+            if (c == '\r') {
+                pendingCR = true;
+            } else if (c == '\n') {
+                lines.put(lineSeparator);
+            } else {
+                lines.put(c);
+            }
+        }
+        if (last && pendingCR) {
+            pendingCR = false;
+            lines.put('\r');
+        }
+    }
+
+    /**
+     * Encode lines into a new buffer, keeping an incomplete surrogate pair for the next block
+     * 
+     * @param alloc
+     * @param last
+     * @return the encoded buffer
+     */
+    private ByteBuf encode(ByteBufAllocator alloc, boolean last) {
+        lines.flip();
+        ByteBuf out = null;
+        if (encodeTable != null) {
+            out = alloc.buffer(lines.remaining());
+            while (lines.hasRemaining()) {
+                out.writeByte(encode(lines.get()));
+            }
+        } else {
+            out = alloc.buffer((int) (lines.remaining() * encoder.maxBytesPerChar()) + 16);
+            ByteBuffer dst = out.nioBuffer(out.writerIndex(), out.writableBytes());
+            encoder.encode(lines, dst, last);
+            if (last) {
+                encoder.flush(dst);
+                encoder.reset();
+            }
+            out.writerIndex(out.writerIndex() + dst.position());
+        }
+        lines.compact();
+        return out;
+    }
+
+    /**
+     * 
+     * @param c
+     * @return the byte for this char using encodeTable
+     */
+    private byte encode(char c) {
+        char value = encodeTable[c];
+        if (value == 0) {
+            return replacement;
+        }
+        return (byte) (value - 1);
+    }
+
+    /**
+     * 
+     * @param buffer
+     * @param size
+     * @return an empty buffer (in write mode) of at least size chars
+     */
+    private static CharBuffer ensureEmpty(CharBuffer buffer, int size) {
+        if (buffer.capacity() < size) {
+            return CharBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 
+     * @param buffer
+     *            in write mode
+     * @param more
+     * @return a buffer (in write mode) with the same content and at least more free chars
+     */
+    private static CharBuffer ensureCapacity(CharBuffer buffer, int more) {
+        if (buffer.remaining() >= more) {
+            return buffer;
+        }
+        CharBuffer newBuffer = CharBuffer.allocate(buffer.position() + more);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+}
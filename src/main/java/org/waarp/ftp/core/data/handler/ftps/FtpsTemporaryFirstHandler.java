@@ -21,9 +21,9 @@ import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.session.FtpSessionReference.ParkedConnection;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
 import io.netty.channel.Channel;
@@ -61,29 +61,38 @@ class FtpsTemporaryFirstHandler extends ChannelDuplexHandler {
         super.channelRegistered(ctx);
     }
 
-    protected void setSession(Channel channel) {
-        // First get the ftpSession from inetaddresses
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB; i++) {
-            session = configuration.getFtpSessionNoRemove(channel, active);
-            if (session == null) {
-                logger.warn("Session not found at try " + i);
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e1) {
-                    break;
-                }
-            } else {
-                break;
-            }
-        }
-        if (session == null) {
-            // Not found !!!
-            logger.error("Session not found!");
-            WaarpSslUtility.closingSslChannel(channel);
-            // Problem: control connection could not be directly informed!!!
-            // Only timeout will occur
-            return;
-        }
+    /**
+     * Get the ftpSession from inetaddresses, or park this channel until the session is
+     * registered: channelActive is then run again from the executor of this handler
+     * 
+     * @param ctx
+     * @return True if the session is found, False if the channel is parked
+     */
+    protected boolean setSession(final ChannelHandlerContext ctx) {
+        session = configuration.getFtpSessionNoRemove(ctx.channel(), active,
+                new ParkedConnection() {
+                    public void sessionFound(final FtpSession found) {
+                        ctx.executor().execute(new Runnable() {
+                            public void run() {
+                                if (found == null || !ctx.channel().isActive()) {
+                                    // Not found !!!
+                                    logger.error("Session not found!");
+                                    WaarpSslUtility.closingSslChannel(ctx.channel());
+                                    // Problem: control connection could not be directly
+                                    // informed!!! Only timeout will occur
+                                    return;
+                                }
+                                session = found;
+                                try {
+                                    channelActive(ctx);
+                                } catch (Exception e) {
+                                    ctx.fireExceptionCaught(e);
+                                }
+                            }
+                        });
+                    }
+                });
+        return session != null;
     }
 
     private void superChannelActive(ChannelHandlerContext ctx) throws Exception {
@@ -95,11 +104,8 @@ class FtpsTemporaryFirstHandler extends ChannelDuplexHandler {
         // Get the SslHandler in the current pipeline.
         Channel channel = ctx.channel();
 
-        if (session == null) {
-            setSession(channel);
-        }
-        if (session == null) {
-            logger.error("Cannot find session for SSL");
+        if (session == null && !setSession(ctx)) {
+            logger.debug("Waiting for the session for SSL");
             return;
         }
         // Server: no renegotiation still, but possible clientAuthent
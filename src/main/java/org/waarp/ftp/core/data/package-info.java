@@ -21,7 +21,9 @@
  * 1) PASSIVE mode where the server waits for the client to initiate the real connection.<br>
  * 2) ACTIVE mode where the server will initiate the data connection.<br>
  * The DataNetworkHandler will inform back the FtpTransferControl that the connection is ready. Then
- * the FtpDataAsyncConn is also informed of this status.
+ * the FtpDataAsyncConn is also informed of this status. In both modes the command does not wait
+ * for the connection: if not yet opened, the 150 answer is given and the transfer started once it
+ * is ready, while a failure gives the 425 answer.
  * <li>The transfer is initiated</li> by calling setNewFtpTransfer method of the FtpTransferControl
  * object. This starts a new thread (FtpTransferExecutor) to execute the transfer.<br>
  * For STORE like operations, it waits for the end of the transfer from the data network handler
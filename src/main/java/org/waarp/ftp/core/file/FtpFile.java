@@ -17,6 +17,9 @@
  */
 package org.waarp.ftp.core.file;
 
+import java.nio.ByteBuffer;
+
+import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.FileInterface;
 
 /**
@@ -31,4 +34,22 @@ public interface FtpFile extends FileInterface {
      */
     public void trueRetrieve();
 
+    /**
+     * Launch store operation directly from the data connection to the file if possible (zero
+     * copy, internal method, should not be called directly)
+     * 
+     * @return True if the store is done in zero copy, False if received blocks must be written as
+     *         usual
+     */
+    public boolean trueStoreZeroCopy();
+
+    /**
+     * Write all the remaining bytes of the buffers at once (gathering write of coalesced
+     * blocks) at the current position of the Store
+     * 
+     * @param buffers
+     * @throws FileTransferException
+     */
+    public void writeDataBuffers(ByteBuffer[] buffers) throws FileTransferException;
+
 }
@@ -443,9 +443,10 @@ public class FtpSession implements SessionInterface {
             // Previous mode was Passive so remove the current configuration
             InetSocketAddress local = getDataConn().getLocalAddress();
             InetAddress remote = getDataConn().getRemoteAddress().getAddress();
-            getConfiguration().delFtpSession(remote, local);
+            getConfiguration().delFtpSession(remote, local, this);
         }
         getDataConn().setMode(FtpArgumentCode.TransferMode.STREAM);
+        getDataConn().setModeZLevel(getConfiguration().getMODEZLEVEL());
         getDataConn().setStructure(FtpArgumentCode.TransferStructure.FILE);
         getDataConn().setType(FtpArgumentCode.TransferType.ASCII);
         getDataConn().setSubType(TransferSubType.NONPRINT);
@@ -453,14 +454,16 @@ public class FtpSession implements SessionInterface {
     }
 
     /**
-     * Try to open a connection. Do the intermediate reply if any (150) and the final one (125)
+     * Try to open a connection. Do the intermediate reply if any (150) and the final one (125).
+     * For an Active connection in progress, the intermediate reply is done once connected.
      * 
      * @throws Reply425Exception
      *             if the connection cannot be opened
      */
     public void openDataConnection() throws Reply425Exception {
-        getDataConn().getFtpTransferControl().openDataConnection();
-        getNetworkHandler().writeIntermediateAnswer();
+        if (getDataConn().getFtpTransferControl().openDataConnection()) {
+            getNetworkHandler().writeIntermediateAnswer();
+        }
     }
 
     @Override
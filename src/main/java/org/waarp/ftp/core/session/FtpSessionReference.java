@@ -19,9 +19,14 @@ package org.waarp.ftp.core.session;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
@@ -31,7 +36,9 @@ import org.waarp.ftp.core.utils.FtpChannelUtils;
  * remote client and the {@link InetSocketAddress} of the server for
  * Passive and reverse for Active connections. This is particularly useful for Passive mode
  * connection since there is no way to pass the session to the connected channel without this
- * reference.
+ * reference.<br>
+ * A data connection arriving before its session is registered (by PASV, EPSV, PORT or EPRT) is
+ * parked until the registration, instead of retrying the lookup.
  * 
  * @author Frederic Bregier
  * 
@@ -53,12 +60,12 @@ public class FtpSessionReference {
         /**
          * Remote Inet Address (no port)
          */
-        public InetAddress ipOnly;
+        public final InetAddress ipOnly;
 
         /**
          * Local Inet Socket Address (with port)
          */
-        public InetSocketAddress fullIp;
+        public final InetSocketAddress fullIp;
 
         /**
          * Constructor from Channel
@@ -112,11 +119,56 @@ public class FtpSessionReference {
 
     }
 
+    /**
+     * Data connection waiting for its session
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static interface ParkedConnection {
+        /**
+         * Called once the session is registered (from the registering thread), or with null if
+         * the timeout occurs or the channel is closed before
+         * 
+         * @param session
+         */
+        public void sessionFound(FtpSession session);
+    }
+
+    /**
+     * Parked data connection
+     */
+    private static class Parked {
+        private final ParkedConnection listener;
+        private final boolean remove;
+        private volatile ScheduledFuture<?> timeout = null;
+
+        private Parked(ParkedConnection listener, boolean remove) {
+            this.listener = listener;
+            this.remove = remove;
+        }
+
+        /**
+         * Cancel the parking timeout if any
+         */
+        private void cancelTimeout() {
+            ScheduledFuture<?> future = timeout;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
     /**
      * Reference of FtpSession from InetSocketAddress
      */
     private final ConcurrentHashMap<P2PAddress, FtpSession> hashMap = new ConcurrentHashMap<P2PAddress, FtpSession>();
 
+    /**
+     * Parked data connections (only used under its own lock)
+     */
+    private final HashMap<P2PAddress, Parked> parkedMap = new HashMap<P2PAddress, Parked>();
+
     /**
      * Constructor
      * 
@@ -141,25 +193,82 @@ public class FtpSessionReference {
         }
         hashMap.put(pAddress, session);
         // logger.debug("Add: {} {}", ipOnly, fullIp);
+        unparkFtpSession(pAddress, session);
     }
 
     /**
-     * Return and remove the FtpSession
+     * Reserve a couple of addresses for this session if not already reserved by another one
      * 
-     * @param channel
-     * @return the FtpSession if it exists associated to this channel
+     * @param ipOnly
+     * @param fullIp
+     * @param session
+     * @return True if the couple is reserved for this session
      */
-    public FtpSession getActiveFtpSession(Channel channel, boolean remove) {
-        // First check Active connection
-        P2PAddress pAddress = new P2PAddress(((InetSocketAddress) channel
-                .localAddress()).getAddress(), (InetSocketAddress) channel
-                .remoteAddress());
+    public boolean reserveFtpSession(InetAddress ipOnly, InetSocketAddress fullIp,
+            FtpSession session) {
+        P2PAddress pAddress = new P2PAddress(ipOnly, fullIp);
         if (!pAddress.isValid()) {
-            logger.error("Couple invalid in getActiveFtpSession: " + channel +
-                    channel.localAddress() + channel.remoteAddress());
+            logger.error("Couple invalid in reserveFtpSession: " + ipOnly +
+                    " : " + fullIp);
+            return false;
+        }
+        FtpSession previous = hashMap.putIfAbsent(pAddress, session);
+        if (previous == null) {
+            unparkFtpSession(pAddress, session);
+            return true;
+        }
+        return previous == session;
+    }
+
+    /**
+     * Give the new registered session to the data connection parked for it if any
+     * 
+     * @param pAddress
+     * @param session
+     */
+    private void unparkFtpSession(P2PAddress pAddress, FtpSession session) {
+        Parked parked = null;
+        synchronized (parkedMap) {
+            if (parkedMap.isEmpty()) {
+                return;
+            }
+            parked = parkedMap.remove(pAddress);
+        }
+        if (parked != null) {
+            parked.cancelTimeout();
+            if (parked.remove) {
+                hashMap.remove(pAddress, session);
+            }
+            parked.listener.sessionFound(session);
+        }
+    }
+
+    /**
+     * Look for the FtpSession
+     * 
+     * @param ipOnly
+     * @param fullIp
+     * @param remove
+     * @return the FtpSession if it exists associated to this couple
+     */
+    private FtpSession lookup(InetAddress ipOnly, InetSocketAddress fullIp, boolean remove) {
+        // keys are immutable once in the map, so a new one for each lookup
+        return lookup(new P2PAddress(ipOnly, fullIp), remove);
+    }
+
+    /**
+     * Look for the FtpSession
+     * 
+     * @param pAddress
+     * @param remove
+     * @return the FtpSession if it exists associated to this couple
+     */
+    private FtpSession lookup(P2PAddress pAddress, boolean remove) {
+        if (!pAddress.isValid()) {
+            logger.error("Couple invalid in lookup: " + pAddress.ipOnly + " : " +
+                    pAddress.fullIp);
             return null;
         }
-        // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
         if (remove) {
             return hashMap.remove(pAddress);
         } else {
@@ -167,6 +276,19 @@ public class FtpSessionReference {
         }
     }
 
+    /**
+     * Return and remove the FtpSession
+     * 
+     * @param channel
+     * @return the FtpSession if it exists associated to this channel
+     */
+    public FtpSession getActiveFtpSession(Channel channel, boolean remove) {
+        // First check Active connection
+        // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
+        return lookup(((InetSocketAddress) channel.localAddress()).getAddress(),
+                (InetSocketAddress) channel.remoteAddress(), remove);
+    }
+
     /**
      * Return and remove the FtpSession
      * 
@@ -175,26 +297,107 @@ public class FtpSessionReference {
      */
     public FtpSession getPassiveFtpSession(Channel channel, boolean remove) {
         // First check passive connection
-        P2PAddress pAddress = new P2PAddress(channel);
+        // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
+        return lookup(FtpChannelUtils.getRemoteInetAddress(channel),
+                (InetSocketAddress) channel.localAddress(), remove);
+    }
+
+    /**
+     * Return (and remove if asked) the FtpSession associated to this data channel, or park the
+     * channel until the session is registered. Once parked, the listener is called once with the
+     * session, or with null if the timeout occurs or the channel is closed before.
+     * 
+     * @param channel
+     * @param active
+     * @param remove
+     * @param listener
+     * @param timeout
+     *            in ms
+     * @return the FtpSession if already registered, else null (the channel is parked)
+     */
+    public FtpSession getOrParkFtpSession(Channel channel, boolean active, boolean remove,
+            final ParkedConnection listener, long timeout) {
+        // the same key for the lookup and the parking
+        final P2PAddress pAddress = active ? new P2PAddress(
+                ((InetSocketAddress) channel.localAddress()).getAddress(),
+                (InetSocketAddress) channel.remoteAddress()) : new P2PAddress(channel);
+        FtpSession session = lookup(pAddress, remove);
+        if (session != null) {
+            return session;
+        }
         if (!pAddress.isValid()) {
-            logger.error("Couple invalid in getPassiveFtpSession: " + channel);
+            listener.sessionFound(null);
             return null;
         }
-        // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        if (remove) {
-            return hashMap.remove(pAddress);
-        } else {
-            return hashMap.get(pAddress);
+        final Parked parked = new Parked(listener, remove);
+        // the timeout is kept before parking so that it is always cancelled once unparked
+        parked.timeout = channel.eventLoop().schedule(new Runnable() {
+            public void run() {
+                if (unpark(pAddress, parked)) {
+                    logger.warn("Session not found for data connection: " + pAddress.ipOnly +
+                            " : " + pAddress.fullIp);
+                    listener.sessionFound(null);
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        boolean added = false;
+        synchronized (parkedMap) {
+            // check again under the lock since the session could be registered meanwhile
+            session = remove ? hashMap.remove(pAddress) : hashMap.get(pAddress);
+            if (session == null && !parkedMap.containsKey(pAddress)) {
+                parkedMap.put(pAddress, parked);
+                added = true;
+            }
+        }
+        if (session != null) {
+            parked.cancelTimeout();
+            return session;
+        }
+        if (!added) {
+            parked.cancelTimeout();
+            logger.warn("Data connection already waiting for: " + pAddress.ipOnly + " : " +
+                    pAddress.fullIp);
+            listener.sessionFound(null);
+            return null;
+        }
+        logger.debug("Data connection parked: {} {}", pAddress.ipOnly, pAddress.fullIp);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (unpark(pAddress, parked)) {
+                    parked.cancelTimeout();
+                    listener.sessionFound(null);
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Remove this parked data connection if still parked
+     * 
+     * @param pAddress
+     * @param parked
+     * @return True if it was still parked
+     */
+    private boolean unpark(P2PAddress pAddress, Parked parked) {
+        synchronized (parkedMap) {
+            if (parkedMap.get(pAddress) == parked) {
+                parkedMap.remove(pAddress);
+                return true;
+            }
+            return false;
         }
     }
 
     /**
-     * Remove the FtpSession from couple of addresses
+     * Remove the FtpSession from couple of addresses, only if still registered for this session
+     * (with shared passive listeners, several sessions behind one NAT may reuse the couple)
      * 
      * @param ipOnly
      * @param fullIp
+     * @param session
      */
-    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp) {
+    public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp, FtpSession session) {
         P2PAddress pAddress = new P2PAddress(ipOnly, fullIp);
         if (!pAddress.isValid()) {
             logger.error("Couple invalid in delFtpSession: " + ipOnly + " : " +
@@ -202,7 +405,7 @@ public class FtpSessionReference {
             return;
         }
         // logger.debug("Del: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        hashMap.remove(pAddress);
+        hashMap.remove(pAddress, session);
     }
 
     /**
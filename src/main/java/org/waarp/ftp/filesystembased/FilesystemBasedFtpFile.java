@@ -17,10 +17,25 @@
  */
 package org.waarp.ftp.filesystembased;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map.Entry;
 import java.util.concurrent.locks.ReentrantLock;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.exception.FileEndOfTransferException;
@@ -29,6 +44,11 @@ import org.waarp.common.file.DataBlock;
 import org.waarp.common.file.filesystembased.FilesystemBasedFileImpl;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpCommandCode;
+import org.waarp.ftp.core.config.FtpTransport;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.data.FtpRetrieveEngine;
+import org.waarp.ftp.core.data.handler.FtpDataBlock;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
@@ -51,6 +71,28 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
      */
     private final ReentrantLock retrieveLock = new ReentrantLock();
 
+    /**
+     * Maximum number of bytes stored through splice (offset is an int), the rest is written
+     * through storeFileChannel
+     */
+    private static final int SPLICE_LIMIT = Integer.MAX_VALUE - 1;
+
+    /**
+     * Native file descriptor used by splice during a zero copy Store
+     */
+    private volatile Closeable spliceFileDescriptor = null;
+
+    /**
+     * File channel used once SPLICE_LIMIT is reached during a zero copy Store, or by gathering
+     * writes: once opened, all received blocks are written through it
+     */
+    private volatile FileChannel storeFileChannel = null;
+
+    /**
+     * File channel the blocks of a Retrieve are read from
+     */
+    private volatile FileChannel retrieveFileChannel = null;
+
     /**
      * @param session
      * @param dir
@@ -111,76 +153,20 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
                         .setPreEndOfTransfer();
                 return;
             }
-            DataBlock block = null;
-            try {
-                block = readDataBlock();
-            } catch (FileEndOfTransferException e) {
-                // Last block (in fact, previous block was the last one,
-                // but it could be aligned with the block size so not
-                // detected)
-                closeFile();
-                ((FtpSession) session).getDataConn().getFtpTransferControl()
-                        .setPreEndOfTransfer();
+            if (isZeroCopyAllowed(channel)) {
+                trueRetrieveZeroCopy(channel);
                 return;
             }
-            if (block == null) {
-                // Last block (in fact, previous block was the last one,
-                // but it could be aligned with the block size so not
-                // detected)
-                closeFile();
-                ((FtpSession) session).getDataConn().getFtpTransferControl()
-                        .setPreEndOfTransfer();
-                return;
-            }
-            // While not last block
-            ChannelFuture future = null;
-            while (block != null && !block.isEOF()) {
-                future = channel.writeAndFlush(block);
-                try {
-                    future.await();
-                } catch (InterruptedException e) {
-                }
-                if (!future.isSuccess()) {
-                    closeFile();
-                    throw new FileTransferException("File transfer in error");
-                }
-                try {
-                    block = readDataBlock();
-                } catch (FileEndOfTransferException e) {
-                    closeFile();
-                    // Wait for last write
-                    if (future.isSuccess()) {
-                        ((FtpSession) session).getDataConn()
-                                .getFtpTransferControl().setPreEndOfTransfer();
-                    } else {
-                        throw new FileTransferException("File transfer in error");
-                    }
-                    return;
-                }
-            }
-            // Last block
-            closeFile();
-            if (block != null) {
-                logger.debug("Write " + block.getByteCount());
-                future = channel.writeAndFlush(block);
-            }
-            // Wait for last write
-            if (future != null) {
-                try {
-                    future.await();
-                } catch (InterruptedException e) {
-                }
-                if (future.isSuccess()) {
-                    ((FtpSession) session).getDataConn().getFtpTransferControl()
-                            .setPreEndOfTransfer();
-                } else {
-                    throw new FileTransferException("Write is not successful");
-                }
-            }
+            // Pipelined retrieve: returns immediately, end of transfer is set by the engine
+            new FtpRetrieveEngine((FtpSession) session, this, channel).start();
         } catch (FileTransferException e) {
             // An error occurs!
             ((FtpSession) session).getDataConn().getFtpTransferControl()
                     .setTransferAbortedFromInternal(true);
+        } catch (FtpNoConnectionException e) {
+            logger.debug("No more connection", e);
+            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                    .setTransferAbortedFromInternal(true);
         } catch (CommandAbstractException e) {
             logger.error("Should not be", e);
             ((FtpSession) session).getDataConn().getFtpTransferControl()
@@ -189,4 +175,378 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
             retrieveLock.unlock();
         }
     }
+
+    /**
+     * 
+     * @param channel
+     * @return True if the file could be sent directly from the file system to the network (STREAM,
+     *         FILE, IMAGE, no SSL and no write limit), so without any copy within the JVM
+     */
+    protected boolean isZeroCopyAllowed(Channel channel) {
+        FtpDataAsyncConn dataConn = ((FtpSession) session).getDataConn();
+        return dataConn.isStreamFileImage() && !((FtpSession) session).isDataSsl() &&
+                channel.pipeline().get(SslHandler.class) == null && !isWriteLimited(channel);
+    }
+
+    /**
+     * 
+     * @param channel
+     * @return True if a traffic shaping handler limits the writes of this channel (the whole file
+     *         region would be accounted as one message, so the limit would not apply)
+     */
+    private static boolean isWriteLimited(Channel channel) {
+        for (Entry<String, ChannelHandler> entry : channel.pipeline()) {
+            ChannelHandler handler = entry.getValue();
+            if (handler instanceof GlobalChannelTrafficShapingHandler &&
+                    ((GlobalChannelTrafficShapingHandler) handler).getWriteChannelLimit() > 0) {
+                return true;
+            }
+            if (handler instanceof AbstractTrafficShapingHandler &&
+                    ((AbstractTrafficShapingHandler) handler).getWriteLimit() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Zero copy version of retrieve: the file is sent through a FileRegion (sendfile) starting
+     * from the current position (as set by any previous REST command)
+     * 
+     * @param channel
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void trueRetrieveZeroCopy(Channel channel) throws FileTransferException,
+            CommandAbstractException {
+        File file = getFileFromPath(getFile());
+        long position = getPosition();
+        long count = file.length() - position;
+        closeFile();
+        if (count <= 0) {
+            // Nothing to send (empty file or restart at the end)
+            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                    .setPreEndOfTransfer();
+            return;
+        }
+        FileChannel fileChannel = null;
+        try {
+            fileChannel = new RandomAccessFile(file, "r").getChannel();
+        } catch (IOException e) {
+            throw new FileTransferException("File cannot be opened for zero copy", e);
+        }
+        logger.debug("Zero copy from " + position + " for " + count);
+        // The FileRegion will close the FileChannel once released
+        channel.writeAndFlush(new DefaultFileRegion(fileChannel, position, count))
+                .addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (future.isSuccess()) {
+                            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                                    .setPreEndOfTransfer();
+                        } else {
+                            logger.debug("Write is not successful", future.cause());
+                            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                                    .setTransferAbortedFromInternal(true);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Launch store operation directly from the data connection to the file through splice if
+     * possible (native epoll transport, STOR or STOU in STREAM, FILE, IMAGE without SSL and
+     * without restart)
+     * 
+     * @return True if the store is done in zero copy, False if received blocks must be written as
+     *         usual
+     */
+    public boolean trueStoreZeroCopy() {
+        if (!((FtpSession) session).getConfiguration().isZeroCopyStore()) {
+            return false;
+        }
+        Channel channel = null;
+        final File file;
+        try {
+            channel = ((FtpSession) session).getDataConn().getCurrentDataChannel();
+            if (!isSpliceAllowed(channel)) {
+                return false;
+            }
+            file = getFileFromPath(getFile());
+        } catch (FtpNoConnectionException e) {
+            return false;
+        } catch (CommandAbstractException e) {
+            return false;
+        }
+        try {
+            spliceFileDescriptor = FtpTransport.spliceTo(channel, file, SPLICE_LIMIT,
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (future.isSuccess()) {
+                                // Called within the event loop so before any next read
+                                spliceLimitReached(file);
+                            } else if (future.channel().isActive()) {
+                                logger.debug("Splice is not successful", future.cause());
+                                ((FtpSession) session).getDataConn().getFtpTransferControl()
+                                        .setTransferAbortedFromInternal(true);
+                            }
+                            // else end of transfer is set by the closing of the data connection
+                        }
+                    });
+        } catch (IOException e) {
+            logger.debug("File cannot be opened for splice", e);
+            return false;
+        }
+        logger.debug("Zero copy store through splice");
+        return true;
+    }
+
+    /**
+     * 
+     * @param channel
+     * @return True if the data could be spliced directly from the network to the file system
+     * @throws CommandAbstractException
+     */
+    protected boolean isSpliceAllowed(Channel channel) throws CommandAbstractException {
+        if (((FtpSession) session).getConfiguration().getFtpInternalConfiguration()
+                .getTransport() != FtpTransport.EPOLL || !FtpTransport.isSpliceCapable(channel)) {
+            return false;
+        }
+        FtpCommandCode code = ((FtpSession) session).getCurrentCommand().getCode();
+        if (code != FtpCommandCode.STOR && code != FtpCommandCode.STOU) {
+            return false;
+        }
+        return getPosition() == 0 && isZeroCopyAllowed(channel) && !isReadLimited(channel);
+    }
+
+    /**
+     * 
+     * @param channel
+     * @return True if a traffic shaping handler limits the reads of this channel (spliced data
+     *         never goes through the pipeline, so the limit would not apply)
+     */
+    private static boolean isReadLimited(Channel channel) {
+        for (Entry<String, ChannelHandler> entry : channel.pipeline()) {
+            ChannelHandler handler = entry.getValue();
+            if (handler instanceof GlobalChannelTrafficShapingHandler &&
+                    ((GlobalChannelTrafficShapingHandler) handler).getReadChannelLimit() > 0) {
+                return true;
+            }
+            if (handler instanceof AbstractTrafficShapingHandler &&
+                    ((AbstractTrafficShapingHandler) handler).getReadLimit() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Once SPLICE_LIMIT bytes are spliced, the next blocks go through the usual path and are
+     * written from this position
+     * 
+     * @param file
+     */
+    private void spliceLimitReached(File file) {
+        logger.debug("Splice limit reached, continue through usual path");
+        try {
+            FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+            fileChannel.position(SPLICE_LIMIT);
+            storeFileChannel = fileChannel;
+        } catch (IOException e) {
+            logger.debug("File cannot be opened after splice", e);
+            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                    .setTransferAbortedFromInternal(true);
+        }
+    }
+
+    /**
+     * Close the resources of a zero copy or gathering Store and of a Retrieve if any
+     */
+    private void closeChannels() {
+        Closeable fileDescriptor = spliceFileDescriptor;
+        if (fileDescriptor != null) {
+            spliceFileDescriptor = null;
+            try {
+                fileDescriptor.close();
+            } catch (IOException e) {
+                logger.debug("Splice file descriptor not closed", e);
+            }
+        }
+        FileChannel fileChannel = storeFileChannel;
+        if (fileChannel != null) {
+            storeFileChannel = null;
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.debug("Store file channel not closed", e);
+            }
+        }
+        fileChannel = retrieveFileChannel;
+        if (fileChannel != null) {
+            retrieveFileChannel = null;
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.debug("Retrieve file channel not closed", e);
+            }
+        }
+    }
+
+    /**
+     * Read the next block into a recycled {@link FtpDataBlock}, with a buffer from the allocator
+     * of the data channel, so that the blocks of a Retrieve are released and recycled once
+     * written
+     */
+    @Override
+    public DataBlock readDataBlock() throws FileTransferException, FileEndOfTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        FileChannel fileChannel = getRetrieveFileChannel();
+        ByteBuf buffer = getAllocator().buffer(getSession().getBlockSize());
+        boolean eof = false;
+        try {
+            while (buffer.isWritable()) {
+                if (buffer.writeBytes(fileChannel, buffer.writableBytes()) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            eof = eof || fileChannel.position() >= fileChannel.size();
+        } catch (IOException e) {
+            buffer.release();
+            throw new FileTransferException("Cannot read the block", e);
+        }
+        if (!buffer.isReadable()) {
+            buffer.release();
+            throw new FileEndOfTransferException("End of file");
+        }
+        DataBlock dataBlock = FtpDataBlock.newInstance();
+        dataBlock.setBlock(buffer);
+        dataBlock.setEOF(eof);
+        return dataBlock;
+    }
+
+    /**
+     * 
+     * @return the allocator of the current data channel (the default one if none)
+     */
+    private ByteBufAllocator getAllocator() {
+        try {
+            return ((FtpSession) session).getDataConn().getCurrentDataChannel().alloc();
+        } catch (FtpNoConnectionException e) {
+            return ByteBufAllocator.DEFAULT;
+        }
+    }
+
+    /**
+     * 
+     * @return the file channel of the current Retrieve, opened at the current position on first
+     *         call
+     * @throws FileTransferException
+     */
+    private FileChannel getRetrieveFileChannel() throws FileTransferException {
+        FileChannel fileChannel = retrieveFileChannel;
+        if (fileChannel != null) {
+            return fileChannel;
+        }
+        try {
+            File file = getFileFromPath(getFile());
+            fileChannel = new RandomAccessFile(file, "r").getChannel();
+            fileChannel.position(getPosition());
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("File cannot be opened", e);
+        } catch (IOException e) {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+            throw new FileTransferException("File cannot be opened", e);
+        }
+        retrieveFileChannel = fileChannel;
+        return fileChannel;
+    }
+
+    @Override
+    public void writeDataBlock(DataBlock dataBlock) throws FileTransferException {
+        FileChannel fileChannel = storeFileChannel;
+        if (fileChannel == null) {
+            super.writeDataBlock(dataBlock);
+            return;
+        }
+        ByteBuf buffer = dataBlock.getBlock();
+        try {
+            while (buffer.isReadable()) {
+                buffer.readBytes(fileChannel, buffer.readableBytes());
+            }
+        } catch (IOException e) {
+            throw new FileTransferException("Cannot write the block", e);
+        }
+    }
+
+    public void writeDataBuffers(ByteBuffer[] buffers) throws FileTransferException {
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        try {
+            FileChannel fileChannel = getStoreFileChannel();
+            while (remaining > 0) {
+                remaining -= fileChannel.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new FileTransferException("Cannot write the buffers", e);
+        }
+    }
+
+    /**
+     * 
+     * @return the file channel of the current Store, opened at the current position on first call
+     * @throws FileTransferException
+     */
+    private FileChannel getStoreFileChannel() throws FileTransferException {
+        FileChannel fileChannel = storeFileChannel;
+        if (fileChannel != null) {
+            return fileChannel;
+        }
+        try {
+            File file = getFileFromPath(getFile());
+            long position = getPosition();
+            fileChannel = new RandomAccessFile(file, "rw").getChannel();
+            if (position == 0) {
+                fileChannel.truncate(0);
+            }
+            fileChannel.position(position);
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("File cannot be opened", e);
+        } catch (IOException e) {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+            throw new FileTransferException("File cannot be opened", e);
+        }
+        storeFileChannel = fileChannel;
+        return fileChannel;
+    }
+
+    @Override
+    public boolean closeFile() throws CommandAbstractException {
+        closeChannels();
+        return super.closeFile();
+    }
+
+    @Override
+    public void abortFile() throws CommandAbstractException {
+        closeChannels();
+        super.abortFile();
+    }
 }
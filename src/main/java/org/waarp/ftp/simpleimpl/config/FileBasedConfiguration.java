@@ -36,6 +36,7 @@ import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdkAbstr
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpTransport;
 import org.waarp.ftp.core.control.BusinessHandler;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.simpleimpl.file.SimpleAuth;
@@ -101,6 +102,48 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_DELETEONABORT = "/config/deleteonabort";
 
+    /**
+     * Should a file be stored using zero copy (splice) when possible
+     */
+    private static final String XML_ZEROCOPYSTORE = "/config/zerocopystore";
+
+    /**
+     * Network transport (NIO or EPOLL)
+     */
+    private static final String XML_TRANSPORT = "/config/transport";
+
+    /**
+     * Should TCP_CORK be set on data connections (EPOLL only)
+     */
+    private static final String XML_TCPCORK = "/config/tcpcork";
+
+    /**
+     * Should TCP_QUICKACK be set on data connections (EPOLL only)
+     */
+    private static final String XML_TCPQUICKACK = "/config/tcpquickack";
+
+    /**
+     * TCP_NOTSENT_LOWAT for data connections (EPOLL only)
+     */
+    private static final String XML_TCPNOTSENTLOWAT = "/config/tcpnotsentlowat";
+
+    /**
+     * Should SO_REUSEPORT be set on listening sockets (EPOLL only)
+     */
+    private static final String XML_REUSEPORT = "/config/reuseport";
+
+    /**
+     * Number of listening sockets on the command port when reuseport is set (0 for one by server
+     * thread)
+     */
+    private static final String XML_COMMANDACCEPTORS = "/config/commandacceptors";
+
+    /**
+     * Number of passive ports opened at startup and shared by all sessions, taken from the range
+     * of ports (0 for one bind by PASV/EPSV)
+     */
+    private static final String XML_SHAREDPASSIVE = "/config/sharedpassive";
+
     /**
      * Should a file MD5 SHA1 be computed using NIO
      */
@@ -117,6 +160,87 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_BLOCKSIZE = "/config/blocksize";
 
+    /**
+     * Number of blocks that can be in flight during a Retrieve operation
+     */
+    private static final String XML_RETRIEVEWINDOW = "/config/retrievewindow";
+
+    /**
+     * Number of bytes that can be in flight during a Retrieve operation (default is
+     * retrievewindow x blocksize)
+     */
+    private static final String XML_RETRIEVEWINDOWSIZE = "/config/retrievewindowsize";
+
+    /**
+     * Number of blocks read ahead from the disk by Retrieve operation (0 for none)
+     */
+    private static final String XML_READAHEAD = "/config/readahead";
+
+    /**
+     * Maximum number of bytes read ahead from the disk for all Retrieve operations
+     */
+    private static final String XML_READAHEADGLOBALSIZE = "/config/readaheadglobalsize";
+
+    /**
+     * Number of threads used to read ahead from the disk
+     */
+    private static final String XML_READAHEADTHREAD = "/config/readaheadthread";
+
+    /**
+     * Number of received blocks queued by Store operation for the disk writer (0 for none)
+     */
+    private static final String XML_STOREQUEUE = "/config/storequeue";
+
+    /**
+     * Number of threads used to write to the disk
+     */
+    private static final String XML_STOREWRITERTHREAD = "/config/storewriterthread";
+
+    /**
+     * Number of threads shared by all sessions for transfer tasks
+     */
+    private static final String XML_TRANSFERTHREAD = "/config/transferthread";
+
+    /**
+     * Use virtual threads for command and transfer tasks (JDK 21+)
+     */
+    private static final String XML_VIRTUALTHREAD = "/config/virtualthread";
+
+    /**
+     * Maximum number of active data connections being connected at the same time
+     */
+    private static final String XML_ACTIVECONNECTMAX = "/config/activeconnectmax";
+
+    /**
+     * Deadline in ms to connect an active data connection
+     */
+    private static final String XML_ACTIVECONNECTTIMEOUT = "/config/activeconnecttimeout";
+
+    /**
+     * Default compression level for MODE Z
+     */
+    private static final String XML_MODEZLEVEL = "/config/modezlevel";
+
+    /**
+     * Should MODE Z Retrieve transfers adapt the compression (1 yes, 0 no)
+     */
+    private static final String XML_ADAPTIVEMODEZ = "/config/adaptivemodez";
+
+    /**
+     * Extensions of files not compressed in MODE Z (comma separated list)
+     */
+    private static final String XML_INCOMPRESSIBLE = "/config/incompressible";
+
+    /**
+     * Percentage of the system load by CPU above which MODE Z does not compress
+     */
+    private static final String XML_MODEZMAXLOAD = "/config/modezmaxload";
+
+    /**
+     * Percentage of compressed size of a sample above which MODE Z does not compress
+     */
+    private static final String XML_MODEZMAXRATIO = "/config/modezmaxratio";
+
     /**
      * RANGE of PORT for Passive Mode
      */
@@ -127,6 +251,11 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_RANGE_PORT_MAX = "/config/rangeport/max";
 
+    /**
+     * Delay in ms before a released port of the RANGE could be used again
+     */
+    private static final String XML_RANGE_PORT_COOLDOWN = "/config/rangeport/cooldown";
+
     /**
      * Authentication
      */
@@ -160,7 +289,7 @@ public class FileBasedConfiguration extends FtpConfiguration {
     /**
      * RANGE of PORT for Passive Mode
      */
-    private CircularIntValue RANGE_PORT = null;
+    private PassivePortPool RANGE_PORT = null;
 
     /**
      * All authentications
@@ -280,6 +409,38 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             setDeleteOnAbort(Integer.parseInt(node.getText()) == 1 ? true : false);
         }
+        node = document.selectSingleNode(XML_ZEROCOPYSTORE);
+        if (node != null) {
+            setZeroCopyStore(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_TRANSPORT);
+        if (node != null) {
+            setTransport(FtpTransport.getFromName(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TCPCORK);
+        if (node != null) {
+            setTcpCork(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_TCPQUICKACK);
+        if (node != null) {
+            setTcpQuickAck(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_TCPNOTSENTLOWAT);
+        if (node != null) {
+            setTcpNotSentLowAt(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_REUSEPORT);
+        if (node != null) {
+            setReusePort(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_COMMANDACCEPTORS);
+        if (node != null) {
+            setCommandAcceptors(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_SHAREDPASSIVE);
+        if (node != null) {
+            setSharedPassivePorts(Integer.parseInt(node.getText()));
+        }
         node = document.selectSingleNode(XML_USENIO);
         if (node != null) {
             FilesystemBasedFileParameterImpl.useNio = Integer.parseInt(node
@@ -296,6 +457,70 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             setBLOCKSIZE(Integer.parseInt(node.getText()));
         }
+        node = document.selectSingleNode(XML_RETRIEVEWINDOW);
+        if (node != null) {
+            setRETRIEVEWINDOW(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_RETRIEVEWINDOWSIZE);
+        if (node != null) {
+            setRETRIEVEWINDOWSIZE(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_READAHEAD);
+        if (node != null) {
+            setREADAHEAD(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_READAHEADGLOBALSIZE);
+        if (node != null) {
+            setREADAHEADGLOBALSIZE(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_READAHEADTHREAD);
+        if (node != null) {
+            setREADAHEADTHREAD(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STOREQUEUE);
+        if (node != null) {
+            setSTOREQUEUE(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STOREWRITERTHREAD);
+        if (node != null) {
+            setSTOREWRITERTHREAD(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TRANSFERTHREAD);
+        if (node != null) {
+            setTRANSFERTHREAD(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_VIRTUALTHREAD);
+        if (node != null) {
+            setVirtualThread(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_ACTIVECONNECTMAX);
+        if (node != null) {
+            setACTIVECONNECTMAX(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_ACTIVECONNECTTIMEOUT);
+        if (node != null) {
+            setACTIVECONNECTTIMEOUT(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_MODEZLEVEL);
+        if (node != null) {
+            setMODEZLEVEL(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_ADAPTIVEMODEZ);
+        if (node != null) {
+            setAdaptiveModeZ(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_INCOMPRESSIBLE);
+        if (node != null) {
+            setIncompressibleExtensions(node.getText());
+        }
+        node = document.selectSingleNode(XML_MODEZMAXLOAD);
+        if (node != null) {
+            setMODEZMAXLOAD(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_MODEZMAXRATIO);
+        if (node != null) {
+            setMODEZMAXRATIO(Integer.parseInt(node.getText()));
+        }
         node = document.selectSingleNode(XML_RANGE_PORT_MIN);
         int min = 100;
         if (node != null) {
@@ -306,7 +531,12 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             max = Integer.parseInt(node.getText());
         }
-        CircularIntValue rangePort = new CircularIntValue(min, max);
+        node = document.selectSingleNode(XML_RANGE_PORT_COOLDOWN);
+        long cooldown = 60000;
+        if (node != null) {
+            cooldown = Long.parseLong(node.getText());
+        }
+        PassivePortPool rangePort = new PassivePortPool(min, max, cooldown);
         setRangePort(rangePort);
         // We use Apache Commons IO
         FilesystemBasedDirJdkAbstract.ueApacheCommonsIo = true;
@@ -384,7 +614,44 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     @Override
     public int getNextRangePort() {
-        return RANGE_PORT.getNext();
+        int port = RANGE_PORT.getNext();
+        if (port < 0) {
+            logger.warn("No more Passive port available: " + RANGE_PORT.getNbInUse() +
+                    " in use, exhausted " + RANGE_PORT.getNbExhausted() + " time(s)");
+        }
+        return port;
+    }
+
+    /**
+     * @see org.waarp.ftp.core.config.FtpConfiguration#releaseRangePort(int)
+     */
+    @Override
+    public void releaseRangePort(int port) {
+        RANGE_PORT.release(port);
+    }
+
+    /**
+     * @see org.waarp.ftp.core.config.FtpConfiguration#getNbRangePortInUse()
+     */
+    @Override
+    public int getNbRangePortInUse() {
+        return RANGE_PORT.getNbInUse();
+    }
+
+    /**
+     * 
+     * @return the number of Passive ports currently not in use (some could be in cooldown)
+     */
+    public int getNbRangePortAvailable() {
+        return RANGE_PORT.getNbAvailable();
+    }
+
+    /**
+     * @see org.waarp.ftp.core.config.FtpConfiguration#getNbRangePortExhausted()
+     */
+    @Override
+    public long getNbRangePortExhausted() {
+        return RANGE_PORT.getNbExhausted();
     }
 
     /**
@@ -392,7 +659,7 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * @param rangePort
      *            the range of available ports for Passive connections
      */
-    private void setRangePort(CircularIntValue rangePort) {
+    private void setRangePort(PassivePortPool rangePort) {
         RANGE_PORT = rangePort;
     }
 
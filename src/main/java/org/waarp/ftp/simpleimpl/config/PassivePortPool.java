@@ -0,0 +1,195 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.simpleimpl.config;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pool of ports used by passive connections to find the next valid port to propose to
+ * the client.<br>
+ * A port is given to only one passive connection at a time. Once released, it is available again
+ * only after a cooldown delay (to let the previous connections leave TIME_WAIT): released ports
+ * wait in a queue ordered by release time (the delay being the same for all) and are promoted back
+ * to the free ports once their cooldown is over, so that getNext never scans ports in cooldown.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class PassivePortPool {
+    /**
+     * Min value
+     */
+    private final int min;
+
+    /**
+     * Max value
+     */
+    private final int max;
+
+    /**
+     * Delay in ms before a released port could be given again
+     */
+    private final long cooldown;
+
+    /**
+     * Free ports
+     */
+    private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * Released ports in cooldown, ordered by end of cooldown
+     */
+    private final ConcurrentLinkedQueue<Integer> cooling = new ConcurrentLinkedQueue<Integer>();
+
+    /**
+     * True while one caller promotes cooled ports
+     */
+    private final AtomicBoolean promoting = new AtomicBoolean(false);
+
+    /**
+     * 1 if the port (index port - min) is in use
+     */
+    private final AtomicIntegerArray inUse;
+
+    /**
+     * Time until which the port (index port - min) is in cooldown
+     */
+    private final AtomicLongArray cooldownUntil;
+
+    /**
+     * Current number of ports in use
+     */
+    private final AtomicInteger nbInUse = new AtomicInteger(0);
+
+    /**
+     * Number of times no port was available
+     */
+    private final AtomicLong nbExhausted = new AtomicLong(0);
+
+    /**
+     * Create a pool of ports
+     * 
+     * @param min
+     * @param max
+     * @param cooldown
+     *            delay in ms before a released port could be given again
+     */
+    public PassivePortPool(int min, int max, long cooldown) {
+        this.min = min;
+        this.max = max;
+        this.cooldown = cooldown;
+        int size = max - min + 1;
+        inUse = new AtomicIntegerArray(size);
+        cooldownUntil = new AtomicLongArray(size);
+        for (int port = min; port <= max; port++) {
+            free.add(port);
+        }
+    }
+
+    /**
+     * Get the next available port
+     * 
+     * @return the next available port, or -1 if none
+     */
+    public int getNext() {
+        promote();
+        Integer port = null;
+        while ((port = free.poll()) != null) {
+            if (inUse.compareAndSet(port - min, 0, 1)) {
+                nbInUse.incrementAndGet();
+                return port;
+            }
+        }
+        nbExhausted.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Move the ports whose cooldown is over back to the free ports
+     */
+    private void promote() {
+        if (cooling.isEmpty()) {
+            return;
+        }
+        // only one consumer at a time so that the head checked is the head removed; others
+        // do not wait, the ports promoted meanwhile are available to them in the next call
+        if (!promoting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            Integer port = null;
+            while ((port = cooling.peek()) != null && cooldownUntil.get(port - min) <= now) {
+                cooling.poll();
+                free.add(port);
+            }
+        } finally {
+            promoting.set(false);
+        }
+    }
+
+    /**
+     * Release a port previously given by getNext
+     * 
+     * @param port
+     */
+    public void release(int port) {
+        if (port < min || port > max) {
+            return;
+        }
+        int index = port - min;
+        if (inUse.compareAndSet(index, 1, 0)) {
+            nbInUse.decrementAndGet();
+            if (cooldown <= 0) {
+                free.add(port);
+                return;
+            }
+            cooldownUntil.set(index, System.currentTimeMillis() + cooldown);
+            cooling.add(port);
+        }
+    }
+
+    /**
+     * 
+     * @return the current number of ports in use
+     */
+    public int getNbInUse() {
+        return nbInUse.get();
+    }
+
+    /**
+     * 
+     * @return the current number of ports not in use (some may be in cooldown)
+     */
+    public int getNbAvailable() {
+        return max - min + 1 - nbInUse.get();
+    }
+
+    /**
+     * 
+     * @return the number of times no port was available
+     */
+    public long getNbExhausted() {
+        return nbExhausted.get();
+    }
+}
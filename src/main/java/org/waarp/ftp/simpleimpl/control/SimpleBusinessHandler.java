@@ -132,6 +132,9 @@ public class SimpleBusinessHandler extends BusinessHandler {
                     args[0].equalsIgnoreCase(FtpCommandCode.MLSD.name())) {
                 return getMLSxOptsMessage(args);
             }
+            if (args[0].equalsIgnoreCase(FtpCommandCode.MODE.name())) {
+                return getModeZOptsMessage(args);
+            }
             throw new Reply502Exception("OPTS not implemented for " + args[0]);
         }
         throw new Reply502Exception("OPTS not implemented");
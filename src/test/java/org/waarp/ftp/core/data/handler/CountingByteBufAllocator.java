@@ -0,0 +1,91 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+
+/**
+ * Unpooled allocator counting the buffers it allocates and their initial capacity, to be set on
+ * an EmbeddedChannel in order to measure the allocations of the data path (single threaded).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class CountingByteBufAllocator extends AbstractByteBufAllocator {
+    /**
+     * Number of buffers allocated since the last reset
+     */
+    private int nbAllocations = 0;
+
+    /**
+     * Initial capacity of the buffers allocated since the last reset
+     */
+    private long nbBytes = 0;
+
+    CountingByteBufAllocator() {
+        super(false);
+    }
+
+    @Override
+    protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+        count(initialCapacity);
+        return new UnpooledHeapByteBuf(this, initialCapacity, maxCapacity);
+    }
+
+    @Override
+    protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+        count(initialCapacity);
+        return new UnpooledDirectByteBuf(this, initialCapacity, maxCapacity);
+    }
+
+    public boolean isDirectBufferPooled() {
+        return false;
+    }
+
+    private void count(int capacity) {
+        nbAllocations++;
+        nbBytes += capacity;
+    }
+
+    /**
+     * Restart the counting
+     */
+    void reset() {
+        nbAllocations = 0;
+        nbBytes = 0;
+    }
+
+    /**
+     * 
+     * @return the number of buffers allocated since the last reset
+     */
+    int getNbAllocations() {
+        return nbAllocations;
+    }
+
+    /**
+     * 
+     * @return the initial capacity of the buffers allocated since the last reset
+     */
+    long getNbBytes() {
+        return nbBytes;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+
+/**
+ * Steady state allocations of the data path: once warmed up, writing or receiving a block must
+ * reuse the same recycled {@link FtpDataBlock} and allocate no buffer at all, except the header
+ * of each BLOCK mode frame. Allocations are counted through a {@link CountingByteBufAllocator}
+ * set on an EmbeddedChannel.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataBlockTest {
+    /**
+     * Number of blocks before measuring
+     */
+    private static final int WARMUP = 100;
+
+    /**
+     * Number of blocks measured
+     */
+    private static final int BLOCKS = 1000;
+
+    /**
+     * Size of one block
+     */
+    private static final int SIZE = 4096;
+
+    /**
+     * Payload of all blocks (wrapped, so never counted)
+     */
+    private static final byte[] PAYLOAD = new byte[SIZE];
+
+    /**
+     * 
+     * @param mode
+     * @param alloc
+     * @return a new EmbeddedChannel with a ready codec using this allocator
+     */
+    private static EmbeddedChannel newChannel(TransferMode mode, CountingByteBufAllocator alloc) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setAllocator(alloc);
+        FtpDataModeCodec codec = new FtpDataModeCodec(mode, TransferStructure.FILE);
+        channel.pipeline().addLast(codec);
+        codec.setCodecReady();
+        return channel;
+    }
+
+    /**
+     * Write nb blocks, releasing the encoded buffers as the network would
+     * 
+     * @param channel
+     * @param nb
+     * @param used
+     *            DataBlock instances used
+     */
+    private static void write(EmbeddedChannel channel, int nb, Map<DataBlock, Boolean> used) {
+        for (int i = 0; i < nb; i++) {
+            DataBlock block = FtpDataBlock.newInstance();
+            used.put(block, Boolean.TRUE);
+            block.setBlock(Unpooled.wrappedBuffer(PAYLOAD));
+            channel.writeOutbound(block);
+            ByteBuf buf = null;
+            while ((buf = channel.readOutbound()) != null) {
+                assertTrue(buf.readableBytes() >= SIZE);
+                buf.release();
+            }
+        }
+    }
+
+    /**
+     * Receive nb blocks, releasing them as the data handler does
+     * 
+     * @param channel
+     * @param nb
+     * @param used
+     *            DataBlock instances received
+     */
+    private static void read(EmbeddedChannel channel, int nb, Map<DataBlock, Boolean> used) {
+        for (int i = 0; i < nb; i++) {
+            channel.writeInbound(Unpooled.wrappedBuffer(PAYLOAD));
+            DataBlock block = null;
+            while ((block = channel.readInbound()) != null) {
+                used.put(block, Boolean.TRUE);
+                assertEquals(SIZE, block.getBlock().readableBytes());
+                FtpDataBlock.release(block);
+            }
+        }
+    }
+
+    @Test
+    public void testRecycled() {
+        // the Recycler only keeps some of the new instances, then reuses them
+        for (int i = 0; i < WARMUP; i++) {
+            FtpDataBlock.recycle(FtpDataBlock.newInstance());
+        }
+        DataBlock block = FtpDataBlock.newInstance();
+        block.setBlock(Unpooled.wrappedBuffer(PAYLOAD));
+        block.setEOF(true);
+        ByteBuf buffer = block.getBlock();
+        FtpDataBlock.release(block);
+        assertEquals(0, buffer.refCnt());
+        DataBlock next = FtpDataBlock.newInstance();
+        assertSame(block, next);
+        assertEquals(null, next.getBlock());
+        assertEquals(false, next.isEOF());
+        FtpDataBlock.recycle(next);
+    }
+
+    @Test
+    public void testStreamWriteAllocations() {
+        CountingByteBufAllocator alloc = new CountingByteBufAllocator();
+        EmbeddedChannel channel = newChannel(TransferMode.STREAM, alloc);
+        Map<DataBlock, Boolean> used = new IdentityHashMap<DataBlock, Boolean>();
+        write(channel, WARMUP, used);
+        alloc.reset();
+        used.clear();
+        write(channel, BLOCKS, used);
+        assertEquals(0, alloc.getNbAllocations());
+        assertEquals(1, used.size());
+        channel.finish();
+    }
+
+    @Test
+    public void testBlockWriteAllocations() {
+        CountingByteBufAllocator alloc = new CountingByteBufAllocator();
+        EmbeddedChannel channel = newChannel(TransferMode.BLOCK, alloc);
+        Map<DataBlock, Boolean> used = new IdentityHashMap<DataBlock, Boolean>();
+        write(channel, WARMUP, used);
+        alloc.reset();
+        used.clear();
+        write(channel, BLOCKS, used);
+        // only the 3 bytes header of each frame
+        assertEquals(BLOCKS, alloc.getNbAllocations());
+        assertEquals(3L * BLOCKS, alloc.getNbBytes());
+        assertEquals(1, used.size());
+        channel.finish();
+    }
+
+    @Test
+    public void testStreamReadAllocations() {
+        CountingByteBufAllocator alloc = new CountingByteBufAllocator();
+        EmbeddedChannel channel = newChannel(TransferMode.STREAM, alloc);
+        Map<DataBlock, Boolean> used = new IdentityHashMap<DataBlock, Boolean>();
+        read(channel, WARMUP, used);
+        alloc.reset();
+        used.clear();
+        read(channel, BLOCKS, used);
+        assertEquals(0, alloc.getNbAllocations());
+        assertEquals(1, used.size());
+        channel.finish();
+    }
+}
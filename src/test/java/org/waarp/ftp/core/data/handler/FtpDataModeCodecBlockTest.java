@@ -0,0 +1,285 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.ByteToMessageCodec;
+
+import org.junit.Test;
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+
+/**
+ * Allocation comparison of BLOCK mode between {@link FtpDataModeCodec} and the previous
+ * implementation (kept below as {@link LegacyBlockCodec}), which copied every payload into a new
+ * buffer when encoding (twice, through the encoder buffer) and when decoding. Both codecs run on
+ * an EmbeddedChannel with a {@link CountingByteBufAllocator}, on the same payload split in the
+ * same blocks, and must produce the same bytes.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataModeCodecBlockTest {
+    /**
+     * Size of the payload
+     */
+    private static final int PAYLOAD = 1 << 20;
+
+    /**
+     * Size of the blocks written (more than 0xFFFF, so sub blocks are used)
+     */
+    private static final int BLOCK = 1 << 16;
+
+    /**
+     * Size of the chunks given to the decoders
+     */
+    private static final int CHUNK = 8192;
+
+    /**
+     * BLOCK mode codec as implemented before zero copy encoding and decoding (FILE structure
+     * only), allocating from the channel allocator instead of ByteBufAllocator.DEFAULT so that
+     * its allocations are counted.
+     */
+    private static class LegacyBlockCodec extends ByteToMessageCodec<DataBlock> {
+        private DataBlock dataBlock = null;
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) {
+            if (buf.readableBytes() < 3) {
+                return;
+            }
+            buf.markReaderIndex();
+            if (dataBlock == null) {
+                dataBlock = new DataBlock();
+            }
+            dataBlock.setDescriptor(buf.readByte());
+            byte upper = buf.readByte();
+            byte lower = buf.readByte();
+            dataBlock.setByteCount(upper, lower);
+            if (buf.readableBytes() < dataBlock.getByteCount()) {
+                buf.resetReaderIndex();
+                return;
+            }
+            if (dataBlock.getByteCount() > 0) {
+                dataBlock.setBlock(buf.readBytes(dataBlock.getByteCount()));
+            }
+            out.add(dataBlock);
+            dataBlock = null;
+        }
+
+        private ByteBuf encode(ChannelHandlerContext ctx, DataBlock msg) {
+            if (msg.isCleared()) {
+                return null;
+            }
+            ByteBuf buffer = msg.getBlock();
+            int length = msg.getByteCount();
+            ByteBuf newbuf = ctx.alloc().buffer(length > 0xFFFF ? 0xFFFF + 3 : length + 3);
+            if (length == 0) {
+                if (msg.isEOF() || msg.isEOR()) {
+                    newbuf.writeByte(msg.getDescriptor());
+                    newbuf.writeByte(0);
+                    newbuf.writeByte(0);
+                    msg.clear();
+                    return newbuf;
+                }
+                msg.clear();
+                newbuf.release();
+                return null;
+            }
+            if (length > 0xFFFF) {
+                newbuf.writeByte(0);
+                newbuf.writeByte(0xFF);
+                newbuf.writeByte(0xFF);
+                newbuf.writeBytes(buffer, 0xFFFF);
+                msg.setByteCount(length - 0xFFFF);
+                return newbuf;
+            }
+            newbuf.writeByte(msg.getDescriptor());
+            newbuf.writeByte(msg.getByteCountUpper());
+            newbuf.writeByte(msg.getByteCountLower());
+            newbuf.writeBytes(buffer, length);
+            msg.clear();
+            return newbuf;
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, DataBlock msg, ByteBuf out) {
+            ByteBuf payload = msg.getBlock();
+            ByteBuf next = encode(ctx, msg);
+            while (next != null) {
+                out.writeBytes(next);
+                next.release();
+                next = encode(ctx, msg);
+            }
+            if (payload != null && payload.refCnt() > 0) {
+                payload.release();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param codec
+     * @param alloc
+     * @return a new EmbeddedChannel using this allocator
+     */
+    private static EmbeddedChannel newChannel(ChannelHandler codec,
+            CountingByteBufAllocator alloc) {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setAllocator(alloc);
+        channel.pipeline().addLast(codec);
+        if (codec instanceof FtpDataModeCodec) {
+            ((FtpDataModeCodec) codec).setCodecReady();
+        }
+        return channel;
+    }
+
+    /**
+     * 
+     * @return the BLOCK mode codec in use
+     */
+    private static FtpDataModeCodec newCodec() {
+        return new FtpDataModeCodec(TransferMode.BLOCK, TransferStructure.FILE);
+    }
+
+    /**
+     * 
+     * @return random bytes
+     */
+    private static byte[] newPayload() {
+        byte[] bytes = new byte[PAYLOAD];
+        new Random(PAYLOAD).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encode the payload in blocks of BLOCK bytes (wrapped, so not counted)
+     * 
+     * @param channel
+     * @param payload
+     * @return the encoded bytes
+     */
+    private static byte[] encode(EmbeddedChannel channel, byte[] payload) {
+        for (int from = 0; from < payload.length; from += BLOCK) {
+            int size = Math.min(BLOCK, payload.length - from);
+            DataBlock block = FtpDataBlock.newInstance();
+            block.setBlock(Unpooled.wrappedBuffer(payload, from, size));
+            block.setEOF(from + size == payload.length);
+            channel.writeOutbound(block);
+        }
+        ByteBuf encoded = Unpooled.buffer();
+        ByteBuf buf = null;
+        while ((buf = channel.readOutbound()) != null) {
+            encoded.writeBytes(buf);
+            buf.release();
+        }
+        byte[] bytes = new byte[encoded.readableBytes()];
+        encoded.readBytes(bytes);
+        encoded.release();
+        return bytes;
+    }
+
+    /**
+     * 
+     * @param encoded
+     * @param alloc
+     * @return the encoded bytes in chunks allocated from alloc
+     */
+    private static List<ByteBuf> chunks(byte[] encoded, CountingByteBufAllocator alloc) {
+        List<ByteBuf> chunks = new ArrayList<ByteBuf>();
+        for (int from = 0; from < encoded.length; from += CHUNK) {
+            int size = Math.min(CHUNK, encoded.length - from);
+            chunks.add(alloc.heapBuffer(size).writeBytes(encoded, from, size));
+        }
+        return chunks;
+    }
+
+    /**
+     * Decode the chunks, consuming the decoded blocks after each one as the data handler does
+     * 
+     * @param channel
+     * @param chunks
+     * @return the decoded bytes
+     */
+    private static byte[] decode(EmbeddedChannel channel, List<ByteBuf> chunks) {
+        ByteBuf decoded = Unpooled.buffer();
+        for (ByteBuf chunk : chunks) {
+            channel.writeInbound(chunk);
+            DataBlock block = null;
+            while ((block = channel.readInbound()) != null) {
+                if (block.getBlock() != null) {
+                    decoded.writeBytes(block.getBlock());
+                }
+                FtpDataBlock.release(block);
+            }
+        }
+        channel.finish();
+        byte[] bytes = new byte[decoded.readableBytes()];
+        decoded.readBytes(bytes);
+        decoded.release();
+        return bytes;
+    }
+
+    @Test
+    public void testBlockEncodeAllocations() {
+        byte[] payload = newPayload();
+        CountingByteBufAllocator alloc = new CountingByteBufAllocator();
+        byte[] legacyEncoded = encode(newChannel(new LegacyBlockCodec(), alloc), payload);
+        long legacyBytes = alloc.getNbBytes();
+        alloc.reset();
+        byte[] encoded = encode(newChannel(newCodec(), alloc), payload);
+        long bytes = alloc.getNbBytes();
+        assertArrayEquals(legacyEncoded, encoded);
+        // the previous encoder copied every payload byte at least once
+        assertTrue("legacy allocated " + legacyBytes, legacyBytes >= PAYLOAD);
+        // only the 3 bytes headers are allocated now
+        assertTrue("allocated " + bytes + " vs " + legacyBytes, bytes * 100 < PAYLOAD);
+    }
+
+    @Test
+    public void testBlockDecodeAllocations() {
+        byte[] payload = newPayload();
+        CountingByteBufAllocator alloc = new CountingByteBufAllocator();
+        byte[] encoded = encode(newChannel(newCodec(), alloc), payload);
+        List<ByteBuf> legacyChunks = chunks(encoded, alloc);
+        EmbeddedChannel legacyChannel = newChannel(new LegacyBlockCodec(), alloc);
+        alloc.reset();
+        assertArrayEquals(payload, decode(legacyChannel, legacyChunks));
+        long legacyBytes = alloc.getNbBytes();
+        List<ByteBuf> newChunks = chunks(encoded, alloc);
+        EmbeddedChannel channel = newChannel(newCodec(), alloc);
+        alloc.reset();
+        assertArrayEquals(payload, decode(channel, newChunks));
+        long bytes = alloc.getNbBytes();
+        // the previous decoder copied every payload byte, the payload is now only sliced
+        assertTrue("legacy allocated " + legacyBytes, legacyBytes >= PAYLOAD);
+        assertTrue("allocated " + bytes + " vs " + legacyBytes, bytes < legacyBytes - PAYLOAD / 2);
+    }
+}
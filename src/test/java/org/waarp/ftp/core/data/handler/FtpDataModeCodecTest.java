@@ -0,0 +1,273 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+
+/**
+ * Round trip tests of {@link FtpDataModeCodec}: blocks are encoded through one EmbeddedChannel,
+ * then the bytes are decoded through another one in small chunks (so frames and escapes are split
+ * across reads), and the decoded data and markers must be the original ones.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataModeCodecTest {
+    /**
+     * Size of the chunks given to the decoder
+     */
+    private static final int CHUNK = 1000;
+
+    /**
+     * Result of a decoding: data and markers
+     */
+    private static class Decoded {
+        private final ByteBuf data = Unpooled.buffer();
+        private int nbEOR = 0;
+        private boolean eof = false;
+
+        private byte[] getBytes() {
+            byte[] bytes = new byte[data.readableBytes()];
+            data.readBytes(bytes);
+            data.release();
+            return bytes;
+        }
+    }
+
+    /**
+     * 
+     * @param mode
+     * @param structure
+     * @return a new EmbeddedChannel with a ready codec
+     */
+    private static EmbeddedChannel newChannel(TransferMode mode, TransferStructure structure) {
+        FtpDataModeCodec codec = new FtpDataModeCodec(mode, structure);
+        EmbeddedChannel channel = new EmbeddedChannel(codec);
+        codec.setCodecReady();
+        return channel;
+    }
+
+    /**
+     * 
+     * @param bytes
+     * @param eor
+     * @param eof
+     * @return a new DataBlock
+     */
+    private static DataBlock newBlock(byte[] bytes, boolean eor, boolean eof) {
+        DataBlock block = FtpDataBlock.newInstance();
+        block.setBlock(Unpooled.copiedBuffer(bytes));
+        block.setEOR(eor);
+        block.setEOF(eof);
+        return block;
+    }
+
+    /**
+     * Encode the blocks, then close the channel (ending the MODE Z stream)
+     * 
+     * @param mode
+     * @param structure
+     * @param blocks
+     * @return the encoded bytes
+     */
+    private static ByteBuf encode(TransferMode mode, TransferStructure structure,
+            List<DataBlock> blocks) {
+        EmbeddedChannel channel = newChannel(mode, structure);
+        List<ByteBuf> payloads = new ArrayList<ByteBuf>();
+        for (DataBlock block : blocks) {
+            payloads.add(block.getBlock());
+            channel.writeOutbound(block);
+        }
+        channel.close();
+        ByteBuf encoded = Unpooled.buffer();
+        ByteBuf buf = null;
+        while ((buf = channel.readOutbound()) != null) {
+            encoded.writeBytes(buf);
+            buf.release();
+        }
+        // once the encoded buffers are released, no payload must be left
+        for (ByteBuf payload : payloads) {
+            assertEquals(0, payload.refCnt());
+        }
+        return encoded;
+    }
+
+    /**
+     * Decode the bytes in chunks, then end the channel
+     * 
+     * @param mode
+     * @param structure
+     * @param encoded
+     *            released
+     * @return the decoded data and markers
+     */
+    private static Decoded decode(TransferMode mode, TransferStructure structure,
+            ByteBuf encoded) {
+        EmbeddedChannel channel = newChannel(mode, structure);
+        while (encoded.isReadable()) {
+            channel.writeInbound(encoded.readRetainedSlice(Math.min(CHUNK,
+                    encoded.readableBytes())));
+        }
+        encoded.release();
+        channel.finish();
+        Decoded decoded = new Decoded();
+        DataBlock block = null;
+        while ((block = channel.readInbound()) != null) {
+            if (block.getBlock() != null) {
+                decoded.data.writeBytes(block.getBlock());
+            }
+            if (block.isEOR()) {
+                decoded.nbEOR++;
+            }
+            if (block.isEOF()) {
+                decoded.eof = true;
+            }
+            FtpDataBlock.release(block);
+        }
+        return decoded;
+    }
+
+    /**
+     * 
+     * @param size
+     * @return random bytes, with runs of zeros, spaces and escapes (0xFF)
+     */
+    private static byte[] newPayload(int size) {
+        byte[] bytes = new byte[size];
+        Random random = new Random(size);
+        random.nextBytes(bytes);
+        for (int i = 0; i + 100 < size; i += 1000) {
+            for (int j = 0; j < 50; j++) {
+                bytes[i + j] = 0;
+                bytes[i + 50 + j] = (j & 1) == 0 ? (byte) 0x20 : (byte) 0xFF;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Split the payload in blocks, the last one with EOF, each one with EOR if record
+     * 
+     * @param payload
+     * @param nb
+     * @param record
+     * @return the blocks
+     */
+    private static List<DataBlock> split(byte[] payload, int nb, boolean record) {
+        List<DataBlock> blocks = new ArrayList<DataBlock>();
+        int size = payload.length / nb;
+        for (int i = 0; i < nb; i++) {
+            int from = i * size;
+            int to = i == nb - 1 ? payload.length : from + size;
+            byte[] bytes = new byte[to - from];
+            System.arraycopy(payload, from, bytes, 0, bytes.length);
+            blocks.add(newBlock(bytes, record, i == nb - 1));
+        }
+        return blocks;
+    }
+
+    /**
+     * Round trip of the payload in nb blocks
+     * 
+     * @param mode
+     * @param structure
+     * @param payload
+     * @param nb
+     * @return the decoded data and markers
+     */
+    private static Decoded roundTrip(TransferMode mode, TransferStructure structure,
+            byte[] payload, int nb) {
+        boolean record = structure == TransferStructure.RECORD;
+        Decoded decoded = decode(mode, structure,
+                encode(mode, structure, split(payload, nb, record)));
+        assertArrayEquals(payload, decoded.getBytes());
+        if (record) {
+            assertEquals(nb, decoded.nbEOR);
+        }
+        return decoded;
+    }
+
+    @Test
+    public void testBlock() {
+        // more than 0xFFFF per block, so sub blocks are used
+        Decoded decoded = roundTrip(TransferMode.BLOCK, TransferStructure.FILE,
+                newPayload(300000), 3);
+        assertTrue(decoded.eof);
+    }
+
+    @Test
+    public void testBlockRecord() {
+        Decoded decoded = roundTrip(TransferMode.BLOCK, TransferStructure.RECORD,
+                newPayload(50000), 10);
+        assertTrue(decoded.eof);
+    }
+
+    @Test
+    public void testCompressed() {
+        Decoded decoded = roundTrip(TransferMode.COMPRESSED, TransferStructure.FILE,
+                newPayload(100000), 4);
+        assertTrue(decoded.eof);
+    }
+
+    @Test
+    public void testCompressedRecord() {
+        Decoded decoded = roundTrip(TransferMode.COMPRESSED, TransferStructure.RECORD,
+                newPayload(20000), 8);
+        assertTrue(decoded.eof);
+    }
+
+    @Test
+    public void testZlib() {
+        roundTrip(TransferMode.ZLIB, TransferStructure.FILE, newPayload(200000), 4);
+    }
+
+    @Test
+    public void testZlibHighlyCompressible() {
+        // each compressed chunk inflates to far more than the first output buffer
+        roundTrip(TransferMode.ZLIB, TransferStructure.FILE, new byte[1 << 20], 16);
+    }
+
+    @Test
+    public void testZlibRecord() {
+        Decoded decoded = roundTrip(TransferMode.ZLIB, TransferStructure.RECORD,
+                newPayload(100000), 5);
+        assertTrue(decoded.eof);
+    }
+
+    @Test
+    public void testStreamRecord() {
+        Decoded decoded = roundTrip(TransferMode.STREAM, TransferStructure.RECORD,
+                newPayload(100000), 5);
+        assertTrue(decoded.eof);
+    }
+}